@@ -0,0 +1,54 @@
+package com.oissela.software.multilevelexpindlistview.benchmarks;
+
+import com.oissela.software.multilevelexpindlistview.ExpIndNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Item of the synthetic trees used by the benchmarks.
+ */
+public class BenchNode implements ExpIndNode {
+    private final List<BenchNode> mChildren = new ArrayList<BenchNode>();
+    private final int mIndentation;
+    private boolean mIsGroup;
+    private int mGroupSize;
+
+    public BenchNode(BenchNode parent) {
+        if (parent == null) {
+            mIndentation = 0;
+        } else {
+            mIndentation = parent.mIndentation + 1;
+            parent.mChildren.add(this);
+        }
+    }
+
+    @Override
+    public List<BenchNode> getChildren() {
+        return mChildren;
+    }
+
+    @Override
+    public boolean isGroup() {
+        return mIsGroup;
+    }
+
+    @Override
+    public void setIsGroup(boolean value) {
+        mIsGroup = value;
+    }
+
+    @Override
+    public void setGroupSize(int groupSize) {
+        mGroupSize = groupSize;
+    }
+
+    public int getGroupSize() {
+        return mGroupSize;
+    }
+
+    @Override
+    public int getIndentation() {
+        return mIndentation;
+    }
+}
@@ -0,0 +1,51 @@
+package com.oissela.software.multilevelexpindlistview.benchmarks;
+
+import com.oissela.software.multilevelexpindlistview.ExpIndTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to load all the items of a tree.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LoadBenchmark {
+    @Param({"DEEP_CHAIN", "WIDE_FANOUT", "REDDIT"})
+    public Shape shape;
+
+    @Param({"1000", "50000"})
+    public int size;
+
+    private List<BenchNode> mItems;
+
+    @Setup
+    public void setUp() {
+        mItems = shape.create(size);
+    }
+
+    @Benchmark
+    public ExpIndTree<BenchNode> addAll() {
+        ExpIndTree<BenchNode> tree = new ExpIndTree<BenchNode>();
+        tree.addAll(mItems);
+        return tree;
+    }
+
+    @Benchmark
+    public ExpIndTree<BenchNode> addOneByOne() {
+        ExpIndTree<BenchNode> tree = new ExpIndTree<BenchNode>();
+        for (BenchNode item : mItems)
+            tree.add(item);
+        return tree;
+    }
+}
@@ -0,0 +1,86 @@
+package com.oissela.software.multilevelexpindlistview.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Shapes of the synthetic trees used by the benchmarks.
+ */
+public enum Shape {
+    /**
+     * Every item is the only child of the previous one.
+     */
+    DEEP_CHAIN {
+        @Override
+        List<BenchNode> roots(int size, Random random) {
+            List<BenchNode> roots = new ArrayList<BenchNode>();
+            BenchNode node = new BenchNode(null);
+            roots.add(node);
+            for (int i = 1; i < size; i++)
+                node = new BenchNode(node);
+            return roots;
+        }
+    },
+    /**
+     * A single item with all the other items as children.
+     */
+    WIDE_FANOUT {
+        @Override
+        List<BenchNode> roots(int size, Random random) {
+            List<BenchNode> roots = new ArrayList<BenchNode>();
+            BenchNode root = new BenchNode(null);
+            roots.add(root);
+            for (int i = 1; i < size; i++)
+                new BenchNode(root);
+            return roots;
+        }
+    },
+    /**
+     * Like the comments of a popular thread: many top level comments, few of them with a lot
+     * of replies and replies less and less likely the deeper they are.
+     */
+    REDDIT {
+        @Override
+        List<BenchNode> roots(int size, Random random) {
+            List<BenchNode> roots = new ArrayList<BenchNode>();
+            List<BenchNode> nodes = new ArrayList<BenchNode>();
+            for (int i = 0; i < size; i++) {
+                BenchNode parent = null;
+                // a reply to a random comment, preferring the most recent ones
+                if (!nodes.isEmpty() && random.nextInt(10) > 0) {
+                    int index = nodes.size() - 1 - (int) Math.abs(random.nextGaussian() * nodes.size() / 8);
+                    parent = nodes.get(Math.max(0, index));
+                    if (parent.getIndentation() >= 20)
+                        parent = null;
+                }
+                BenchNode node = new BenchNode(parent);
+                nodes.add(node);
+                if (parent == null)
+                    roots.add(node);
+            }
+            return roots;
+        }
+    };
+
+    abstract List<BenchNode> roots(int size, Random random);
+
+    /**
+     * @return All the items of a tree with this shape, in depth first order (i.e. the order they
+     *         have in an ExpIndTree when all the groups are expanded)
+     */
+    public List<BenchNode> create(int size) {
+        List<BenchNode> items = new ArrayList<BenchNode>(size);
+        List<BenchNode> stack = new ArrayList<BenchNode>();
+        List<BenchNode> roots = roots(size, new Random(42));
+        for (int i = roots.size() - 1; i >= 0; i--)
+            stack.add(roots.get(i));
+        while (!stack.isEmpty()) {
+            BenchNode node = stack.remove(stack.size() - 1);
+            items.add(node);
+            for (int i = node.getChildren().size() - 1; i >= 0; i--)
+                stack.add(node.getChildren().get(i));
+        }
+        return items;
+    }
+}
@@ -0,0 +1,60 @@
+package com.oissela.software.multilevelexpindlistview.benchmarks;
+
+import com.oissela.software.multilevelexpindlistview.ExpIndTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to save the collapsed groups and to restore them on a freshly loaded tree,
+ * like on a configuration change.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StateBenchmark {
+    @Param({"DEEP_CHAIN", "WIDE_FANOUT", "REDDIT"})
+    public Shape shape;
+
+    @Param({"1000", "50000"})
+    public int size;
+
+    private List<BenchNode> mItems;
+    private ExpIndTree<BenchNode> mTree;
+    private long[] mState;
+
+    @Setup
+    public void setUp() {
+        mItems = shape.create(size);
+        mTree = new ExpIndTree<BenchNode>();
+        mTree.addAll(mItems);
+        // collapse every tenth item, from the bottom so that the positions don't change
+        for (int i = mItems.size() - 1; i >= 0; i--) {
+            if (i % 10 == 0)
+                mTree.collapseGroup(i);
+        }
+        mState = mTree.saveGroupsState();
+    }
+
+    @Benchmark
+    public long[] save() {
+        return mTree.saveGroupsState();
+    }
+
+    @Benchmark
+    public ExpIndTree<BenchNode> loadAndRestore() {
+        ExpIndTree<BenchNode> tree = new ExpIndTree<BenchNode>();
+        tree.addAll(mItems);
+        tree.restoreGroupsState(mState);
+        return tree;
+    }
+}
@@ -0,0 +1,68 @@
+package com.oissela.software.multilevelexpindlistview.benchmarks;
+
+import com.oissela.software.multilevelexpindlistview.ExpIndTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of collapsing a group and expanding it back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ToggleBenchmark {
+    @Param({"DEEP_CHAIN", "WIDE_FANOUT", "REDDIT"})
+    public Shape shape;
+
+    @Param({"1000", "50000"})
+    public int size;
+
+    private ExpIndTree<BenchNode> mTree;
+    private int mFirst;
+    private int mMiddle;
+
+    @Setup
+    public void setUp() {
+        List<BenchNode> items = shape.create(size);
+        mTree = new ExpIndTree<BenchNode>();
+        mTree.addAll(items);
+        mFirst = 0;
+        // the first item with children in the second half of the list
+        mMiddle = 0;
+        for (int i = items.size() / 2; i < items.size(); i++) {
+            if (!items.get(i).getChildren().isEmpty()) {
+                mMiddle = i;
+                break;
+            }
+        }
+    }
+
+    @Benchmark
+    public int toggleFirst() {
+        int collapsed = mTree.collapseGroup(mFirst);
+        int expanded = mTree.expandGroup(mFirst);
+        return collapsed + expanded;
+    }
+
+    @Benchmark
+    public int toggleMiddle() {
+        int collapsed = mTree.collapseGroup(mMiddle);
+        int expanded = mTree.expandGroup(mMiddle);
+        return collapsed + expanded;
+    }
+
+    @Benchmark
+    public BenchNode getMiddle() {
+        return mTree.get(mMiddle);
+    }
+}
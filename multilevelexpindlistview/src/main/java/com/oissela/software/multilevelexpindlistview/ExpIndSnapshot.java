@@ -0,0 +1,253 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.oissela.software.multilevelexpindlistview.MultiLevelExpIndListAdapter.ExpIndData;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Snapshot of all the items of an adapter (visible and hidden) and of its collapsed groups,
+ * that survives the death of the process when it's saved in the Bundle in onSaveInstanceState.
+ * See {@link MultiLevelExpIndListAdapter#saveSnapshot(Codec)} and
+ * {@link MultiLevelExpIndListAdapter#restoreSnapshot(ExpIndSnapshot, Codec)}.
+ *
+ * The snapshot is a compact binary form of the tree: the index of the parent of every item,
+ * the bitset of the collapsed groups (see {@link MultiLevelExpIndListAdapter#saveGroupsState()})
+ * and the data of every item, written by a {@link Codec}. The group sizes aren't saved because
+ * they are recomputed while restoring. If the snapshot is bigger than {@link #MAX_PARCEL_SIZE} it's
+ * written to a file in the cache directory and only the path of the file is put in the Parcel,
+ * so that it doesn't exceed the size limit of Binder transactions. Every adapter writes its
+ * snapshots to the same file (the one of the snapshot it restored, after the death of the process),
+ * so the files don't pile up and a snapshot can be restored more than once.
+ */
+public class ExpIndSnapshot implements Parcelable {
+    /**
+     * Snapshots bigger than this (in bytes) are saved to a file instead of the Parcel.
+     */
+    public static final int MAX_PARCEL_SIZE = 64 * 1024;
+
+    private static final int VERSION = 1;
+
+    private static final int STORED_IN_PARCEL = 0;
+    private static final int STORED_IN_FILE = 1;
+
+    /**
+     * Writes and reads the data of the items.
+     *
+     * @param <T> The class of the items
+     */
+    public interface Codec<T extends ExpIndData> {
+        /**
+         * Write the data of item (e.g. the author and the text of a comment), but not its children.
+         */
+        void write(T item, DataOutput out) throws IOException;
+
+        /**
+         * Read the data written by {@link #write(ExpIndData, DataOutput)} and create the item.
+         * The items are read parents first and the item must be added to the children of its parent.
+         * @param parent The parent of the item or null if the item has no parent
+         * @return The new item
+         */
+        T read(DataInput in, T parent) throws IOException;
+    }
+
+    /**
+     * The snapshot, if it's small enough to be put in a Parcel.
+     */
+    private final byte[] mBytes;
+    /**
+     * The file where the snapshot is saved, if it's too big to be put in a Parcel.
+     */
+    private final File mFile;
+
+    private ExpIndSnapshot(byte[] bytes, File file) {
+        mBytes = bytes;
+        mFile = file;
+    }
+
+    /**
+     * Create the snapshot of the items.
+     * @param items All the items, in the order they have when all the groups are expanded
+     * @param groups The bitset of the indices of the collapsed groups
+     * @param codec Writes the data of the items
+     * @param cacheDir Directory where the snapshot is saved if it's too big for a Parcel
+     * @param file The file of the previous snapshot of the adapter, which is replaced (or deleted if
+     *             the snapshot fits in a Parcel), null to create a new file
+     * @throws IOException If the snapshot can't be written or the previous one can't be replaced
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends ExpIndData> ExpIndSnapshot create(List<ExpIndData> items, long[] groups,
+                                                        Codec<T> codec, File cacheDir, File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VERSION);
+        out.writeInt(items.size());
+
+        // the items are in depth first order, so the parent of an item is the closest ancestor
+        // that still has children to visit
+        int[] ancestors = new int[16];
+        int[] childrenLeft = new int[16];
+        int depth = 0;
+        for (int i = 0; i < items.size(); i++) {
+            while (depth > 0 && childrenLeft[depth - 1] == 0)
+                depth--;
+            if (depth > 0) {
+                out.writeInt(ancestors[depth - 1]);
+                childrenLeft[depth - 1]--;
+            } else {
+                out.writeInt(-1);
+            }
+            List<? extends ExpIndData> children = items.get(i).getChildren();
+            if (children != null && !children.isEmpty()) {
+                if (depth == ancestors.length) {
+                    ancestors = grow(ancestors);
+                    childrenLeft = grow(childrenLeft);
+                }
+                ancestors[depth] = i;
+                childrenLeft[depth] = children.size();
+                depth++;
+            }
+        }
+
+        out.writeInt(groups.length);
+        for (long word : groups)
+            out.writeLong(word);
+
+        for (ExpIndData item : items)
+            codec.write((T) item, out);
+        out.close();
+
+        if (bytes.size() <= MAX_PARCEL_SIZE) {
+            if (file != null)
+                file.delete();
+            return new ExpIndSnapshot(bytes.toByteArray(), null);
+        }
+
+        // the previous snapshot is replaced only when the new one is complete
+        File temp = File.createTempFile("expindsnapshot", ".bin", cacheDir);
+        boolean saved = false;
+        try {
+            OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                bytes.writeTo(fileOut);
+            } finally {
+                fileOut.close();
+            }
+            if (file == null) {
+                file = temp;
+            } else if (!temp.renameTo(file)) {
+                // some file systems don't rename over an existing file
+                file.delete();
+                if (!temp.renameTo(file))
+                    throw new IOException("Can't rename " + temp + " to " + file);
+            }
+            saved = true;
+        } finally {
+            // a partial snapshot is never left behind
+            if (!saved)
+                temp.delete();
+        }
+        return new ExpIndSnapshot(null, file);
+    }
+
+    /**
+     * @return The file where the snapshot is saved, null if it's in the Parcel
+     */
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Recreate the items of the snapshot. The file of the snapshot isn't deleted, so it can be
+     * restored again (e.g. if the activity is recreated before the next snapshot is saved).
+     * @param items The list where all the items are added, in the order they have when all the
+     *              groups are expanded
+     * @return The bitset of the indices of the collapsed groups
+     * @throws FileNotFoundException If the snapshot was saved to a file that was deleted in the
+     *         meantime (e.g. the system cleared the cache directory)
+     */
+    <T extends ExpIndData> long[] restore(List<T> items, Codec<T> codec) throws IOException {
+        if (mFile != null && !mFile.exists())
+            throw new FileNotFoundException("the snapshot file " + mFile + " was deleted");
+        InputStream stream = mBytes != null ?
+                new ByteArrayInputStream(mBytes) :
+                new BufferedInputStream(new FileInputStream(mFile));
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unknown snapshot version " + version);
+
+            int count = in.readInt();
+            int[] parents = new int[count];
+            for (int i = 0; i < count; i++)
+                parents[i] = in.readInt();
+
+            long[] groups = new long[in.readInt()];
+            for (int i = 0; i < groups.length; i++)
+                groups[i] = in.readLong();
+
+            List<T> read = new ArrayList<T>(count);
+            for (int i = 0; i < count; i++)
+                read.add(codec.read(in, parents[i] < 0 ? null : read.get(parents[i])));
+            items.addAll(read);
+            return groups;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int[] grow(int[] array) {
+        int[] bigger = new int[array.length * 2];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        if (mBytes != null) {
+            dest.writeInt(STORED_IN_PARCEL);
+            dest.writeByteArray(mBytes);
+        } else {
+            dest.writeInt(STORED_IN_FILE);
+            dest.writeString(mFile.getAbsolutePath());
+        }
+    }
+
+    public static final Parcelable.Creator<ExpIndSnapshot> CREATOR = new Parcelable.Creator<ExpIndSnapshot>() {
+        @Override
+        public ExpIndSnapshot createFromParcel(Parcel source) {
+            if (source.readInt() == STORED_IN_PARCEL)
+                return new ExpIndSnapshot(source.createByteArray(), null);
+            return new ExpIndSnapshot(null, new File(source.readString()));
+        }
+
+        @Override
+        public ExpIndSnapshot[] newArray(int size) {
+            return new ExpIndSnapshot[size];
+        }
+    };
+}
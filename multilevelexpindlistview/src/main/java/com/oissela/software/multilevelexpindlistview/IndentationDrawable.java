@@ -0,0 +1,47 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * The background of a row of {@link MultiLevelExpIndListAdapter} that draws its indentation with
+ * an {@link IndentationRenderer}. Every row view has its own, created when the view is inflated,
+ * so binding only changes the indentation and invalidates the drawable.
+ */
+final class IndentationDrawable extends Drawable {
+    private final IndentationRenderer mRenderer;
+    private int mIndentation;
+
+    IndentationDrawable(IndentationRenderer renderer) {
+        mRenderer = renderer;
+    }
+
+    void setIndentation(int indentation) {
+        if (indentation == mIndentation)
+            return;
+        mIndentation = indentation;
+        invalidateSelf();
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Rect bounds = getBounds();
+        mRenderer.draw(canvas, bounds.left, bounds.top, bounds.bottom, mIndentation);
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter cf) {
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
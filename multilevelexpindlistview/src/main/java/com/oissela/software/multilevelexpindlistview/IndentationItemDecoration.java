@@ -0,0 +1,53 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+/**
+ * Indents the rows of a {@link MultiLevelExpIndRecyclerAdapter} and draws their indentation with
+ * an {@link IndentationRenderer}. The indentation is an offset of the item, not a padding of its
+ * view, so the views don't have to set their padding (and aren't laid out again) when they are
+ * bound to items with a different indentation.
+ */
+public class IndentationItemDecoration extends RecyclerView.ItemDecoration {
+    private final MultiLevelExpIndRecyclerAdapter<?> mAdapter;
+    private final IndentationRenderer mRenderer;
+
+    public IndentationItemDecoration(MultiLevelExpIndRecyclerAdapter<?> adapter, IndentationRenderer renderer) {
+        mAdapter = adapter;
+        mRenderer = renderer;
+    }
+
+    @Override
+    public void getItemOffsets(Rect outRect, View view, RecyclerView parent, RecyclerView.State state) {
+        int indentation = getIndentation(parent, view);
+        outRect.set(indentation < 0 ? 0 : mRenderer.getOffset(indentation), 0, 0, 0);
+    }
+
+    @Override
+    public void onDraw(Canvas c, RecyclerView parent, RecyclerView.State state) {
+        int count = parent.getChildCount();
+        for (int i = 0; i < count; i++) {
+            View child = parent.getChildAt(i);
+            int indentation = getIndentation(parent, child);
+            if (indentation < 0)
+                continue;
+            int top = child.getTop() + (int) child.getTranslationY();
+            int bottom = child.getBottom() + (int) child.getTranslationY();
+            mRenderer.draw(c, child.getLeft() - mRenderer.getOffset(indentation), top, bottom, indentation);
+        }
+    }
+
+    /**
+     * @return The indentation of the item shown by view, -1 if it isn't known (e.g. the item
+     *         was just removed)
+     */
+    private int getIndentation(RecyclerView parent, View view) {
+        int position = parent.getChildPosition(view);
+        if (position < 0 || position >= mAdapter.getItemCount())
+            return -1;
+        return mAdapter.getItem(position).getIndentation();
+    }
+}
@@ -0,0 +1,93 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.TypedValue;
+
+/**
+ * Draws the indentation of a row straight onto the canvas: a thin guide line for every ancestor
+ * and a colored band at the left of the row's content, whose color depends on the indentation.
+ * The paints are created once, so drawing doesn't allocate anything, and the rows don't need a
+ * view for the colored band.
+ *
+ * Use it with {@link MultiLevelExpIndListAdapter#setIndentationRenderer(IndentationRenderer)} or
+ * with an {@link IndentationItemDecoration}.
+ */
+public final class IndentationRenderer {
+    private static final int DEFAULT_GUIDE_COLOR = 0x33000000;
+
+    /**
+     * Width of an indentation level, of the colored band and of the guide lines in pixels.
+     */
+    private final int mIndentationPixels;
+    private final int mBandPixels;
+    private final int mGuidePixels;
+
+    /**
+     * The paints of the colored bands: the band of a row with indentation i is drawn with
+     * mBandPaints[i % mBandPaints.length].
+     */
+    private final Paint[] mBandPaints;
+    private final Paint mGuidePaint;
+
+    /**
+     * @param context The current context, used to convert dp to pixels
+     * @param indentationDP The width of an indentation level in dp
+     * @param bandDP The width of the colored band in dp, 0 to draw only the guide lines
+     * @param bandColors The colors of the bands, by indentation (repeated if there are more
+     *                   levels than colors)
+     */
+    public IndentationRenderer(Context context, int indentationDP, int bandDP, int[] bandColors) {
+        if (bandColors == null || bandColors.length == 0)
+            throw new IllegalArgumentException("at least one band color is needed");
+        Resources r = context.getResources();
+        mIndentationPixels = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, indentationDP, r.getDisplayMetrics());
+        mBandPixels = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, bandDP, r.getDisplayMetrics());
+        mGuidePixels = Math.max(1, (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 1, r.getDisplayMetrics()));
+
+        mBandPaints = new Paint[bandColors.length];
+        for (int i = 0; i < bandColors.length; i++) {
+            mBandPaints[i] = new Paint();
+            mBandPaints[i].setStyle(Paint.Style.FILL);
+            mBandPaints[i].setColor(bandColors[i]);
+        }
+        mGuidePaint = new Paint();
+        mGuidePaint.setStyle(Paint.Style.FILL);
+        mGuidePaint.setColor(DEFAULT_GUIDE_COLOR);
+    }
+
+    /**
+     * @param color The color of the guide lines, 0 to not draw them
+     */
+    public void setGuideColor(int color) {
+        mGuidePaint.setColor(color);
+    }
+
+    /**
+     * @return The space in pixels at the left of the content of a row with this indentation,
+     *         including the colored band
+     */
+    public int getOffset(int indentation) {
+        return mIndentationPixels * indentation + mBandPixels;
+    }
+
+    /**
+     * Draw the indentation of a row.
+     * @param left The left edge of the row, the content starts at left + {@link #getOffset(int)}
+     * @param top The top edge of the row
+     * @param bottom The bottom edge of the row
+     */
+    public void draw(Canvas canvas, int left, int top, int bottom, int indentation) {
+        // a guide line in the middle of every ancestor's level
+        for (int level = 0; level < indentation; level++) {
+            int x = left + mIndentationPixels * level + (mIndentationPixels - mGuidePixels) / 2;
+            canvas.drawRect(x, top, x + mGuidePixels, bottom, mGuidePaint);
+        }
+        if (mBandPixels > 0) {
+            int x = left + mIndentationPixels * indentation;
+            canvas.drawRect(x, top, x + mBandPixels, bottom, mBandPaints[indentation % mBandPaints.length]);
+        }
+    }
+}
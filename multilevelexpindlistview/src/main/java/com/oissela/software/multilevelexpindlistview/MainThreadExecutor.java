@@ -0,0 +1,18 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the tasks on the main thread, where the adapters modify their items.
+ */
+final class MainThreadExecutor implements Executor {
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(Runnable command) {
+        mHandler.post(command);
+    }
+}
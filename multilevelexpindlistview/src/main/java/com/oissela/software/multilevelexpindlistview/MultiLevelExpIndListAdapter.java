@@ -1,8 +1,14 @@
 package com.oissela.software.multilevelexpindlistview;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Trace;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -12,11 +18,13 @@ import android.widget.Checkable;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * Multi-level expandable indentable list adapter.
@@ -28,16 +36,26 @@ import java.util.Map;
  * you can call {@link #toggleGroup(int)}.
  *
  * The way the data is put in the item/group views is similar to the method used by SimpleAdapter,
- * but in this case there are 2 views. If you have more than two views you can extend this class
- * and override {@link #getView(int, android.view.View, android.view.ViewGroup)},
- * {@link #getViewTypeCount()} and {@link #getItemViewType(int)}.
+ * but in this case there are 2 views. Alternatively you can bind the items yourself, without
+ * building a map for every item, with a {@link RowBinder} (see {@link #setItemRowBinder(RowBinder)}).
+ * If you have more than two views (e.g. deleted comments or "load more" rows) register a layout and
+ * a RowBinder for each one with {@link #addViewType(int, int[], RowBinder)} and tell the view type
+ * of every item with a {@link ViewTypeResolver}: the rows keep the indentation and are recycled
+ * separately for every view type.
  *
  * To preserve state (i.e. which items are collapsed) when a configuration change happens (e.g. screen rotation)
- * you should call {@link #saveGroups()} inside onSaveInstanceState and save the returned value into
- * the Bundle. When the activity/fragment is recreated you can call {@link #restoreGroups(java.util.ArrayList)}
- * to restore the previous state. The actual data (e.g. the comments in the sample app) is not preserved,
- * so you should save it yourself with a static field or implementing Parcelable or
- * saving data to a file or something like that.
+ * you should call {@link #saveGroupsState()} inside onSaveInstanceState and save the returned value into
+ * the Bundle. When the activity/fragment is recreated you can call {@link #restoreGroupsState(long[])}
+ * to restore the previous state. The actual data (e.g. the comments in the sample app) is not preserved
+ * by these methods. To save the data too, so that it survives the death of the process, use
+ * {@link #saveSnapshot(ExpIndSnapshot.Codec)} and {@link #restoreSnapshot(ExpIndSnapshot, ExpIndSnapshot.Codec)}
+ * instead.
+ *
+ * The children of an item don't have to be loaded up front: if the item implements {@link LazyNode}
+ * they are loaded in background when it's expanded, see {@link #setChildrenLoader(ExpIndTree.ChildrenLoader, Executor)}.
+ * Groups with many children can be expanded a page at a time, see {@link #setPaging(int, ExpIndTree.MoreRowFactory)}.
+ *
+ * To measure where the time goes (e.g. to report it to a dashboard) set a {@link MetricsListener}.
  */
 public class MultiLevelExpIndListAdapter extends BaseAdapter {
     /**
@@ -51,10 +69,24 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
 
     /**
      * Indicates whether or not {@link #notifyDataSetChanged()} must be called whenever
-     * {@link #mData} is modified.
+     * the list of items is modified.
      */
     private boolean mNotifyOnChange = true;
 
+    /**
+     * True while a call of the caller changes the tree, so that the changes the tree notifies
+     * depend on {@link #mNotifyOnChange}. The other changes (e.g. loaded children) are always
+     * notified.
+     */
+    private boolean mCallerChange;
+
+    /**
+     * The number of {@link #beginBatch()} calls without the matching {@link #endBatch()} and
+     * whether {@link #notifyDataSetChanged()} was called during the batch.
+     */
+    private int mBatchDepth;
+    private boolean mChangedInBatch;
+
     private final Context mContext;
 
     /**
@@ -84,17 +116,17 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
     private final int[] mToG;
 
     /**
-     * List of items.
+     * Items and groups.
      */
-    private List<ExpIndData> mData;
+    private final ExpIndTree<ExpIndData> mTree;
+
+    private LayoutInflater mInflater;
 
     /**
-     * Map an item to the relative group.
-     * e.g.: if the user click on item 6 then mGroups(item(6)) = {all items/groups below item 6}
+     * Item/group views inflated in background, see {@link #preinflate(ViewGroup, int, int, Executor)}.
      */
-    private Map<ExpIndData, List<? extends ExpIndData>> mGroups;
-
-    private LayoutInflater mInflater;
+    private final ViewPool mItemPool;
+    private final ViewPool mGroupPool;
 
     /**
      * View documentation for MultiLevelExpIndListAdapter.ViewBinder
@@ -102,29 +134,66 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
     private ViewBinder mItemViewBinder;
     private ViewBinder mGroupViewBinder;
 
+    /**
+     * View documentation for MultiLevelExpIndListAdapter.RowBinder
+     */
+    private RowBinder<ExpIndData> mItemRowBinder;
+    private RowBinder<ExpIndData> mGroupRowBinder;
+
+    /**
+     * The view types added by {@link #addViewType(int, int[], RowBinder)}: the view type of the
+     * element at index i is VIEW_TYPE_GROUP + 1 + i.
+     */
+    private final List<ViewType> mViewTypes = new ArrayList<ViewType>();
+    private ViewTypeResolver<ExpIndData> mViewTypeResolver;
+
+    /**
+     * View documentation for MultiLevelExpIndListAdapter.MetricsListener. When it's null nothing
+     * is measured.
+     */
+    private MetricsListener mMetricsListener;
+
     /**
      * Left padding unit. e.g.: Item with indentation 2 has mPaddingDP * 2 space on the left.
      */
     private int mPaddingDP = 5;
 
     /**
-     * Interface that every item has to implement.
+     * mPaddingDP converted to pixels. It's computed only when mPaddingDP or the configuration
+     * change, so that getView() doesn't have to look up the display metrics for every row.
      */
-    public interface ExpIndData {
-        /**
-         * @return The children of this item.
-         */
-        List<? extends ExpIndData> getChildren();
+    private int mPaddingPixels;
 
-        /**
-         * @return True if this item is a group.
-         */
-        boolean isGroup();
+    /**
+     * Draws the indentation of the rows, null if the rows are only indented by their padding.
+     */
+    private IndentationRenderer mIndentationRenderer;
 
+    /**
+     * The text layouts of the rows, see {@link #setTextLayoutCache(TextLayoutCache, int)}, the
+     * number of rows ahead whose layouts are built in background and the position of the last
+     * row bound, which tells the direction of the scroll.
+     */
+    private TextLayoutCache<ExpIndData> mTextLayoutCache;
+    private int mPrefetchCount;
+    private int mLastBoundPosition;
+
+    /**
+     * The file of the last snapshot saved or restored, which is replaced by the next snapshot.
+     * See {@link ExpIndSnapshot}.
+     */
+    private File mSnapshotFile;
+
+    /**
+     * Interface that every item has to implement. The methods about the hierarchy of the items
+     * are declared in {@link ExpIndNode}.
+     */
+    public interface ExpIndData extends ExpIndNode {
         /**
-         * @param value True if this item is a group
+         * @return The children of this item.
          */
-        void setIsGroup(boolean value);
+        @Override
+        List<? extends ExpIndData> getChildren();
 
         /** If you extend MultiLevelExpIndListAdapter and override {@link #getView(int, android.view.View, android.view.ViewGroup)}
          * this data will not be used so you can return null. Otherwise it should return the data
@@ -135,18 +204,17 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
          *         If the object is complex use ViewBinder.
          */
         Map<String, ?> getData();
+    }
 
-        /**
-         * @param groupSize Set the number of items in the group.
-         *                  Note: groups contained in other groups are counted just as one, not
-         *                  as the number of items that they contain.
-         */
-        void setGroupSize(int groupSize);
-
-        /**
-         * @return The level of indentation
-         */
-        int getIndentation();
+    /**
+     * Optional interface for items that already have a unique id (e.g. the id of a comment
+     * in a database). If an item doesn't implement it the adapter assigns it an id the first
+     * time the id is requested. Either way an item keeps its id when the items above it are
+     * expanded/collapsed, so the adapter has stable ids (see {@link #hasStableIds()}).
+     * The id is returned by {@link StableIdNode#getStableId()}: it must be >= 0, negative ids are
+     * reserved for the ids assigned by the adapter.
+     */
+    public interface StableIdData extends ExpIndData, StableIdNode {
     }
 
     /**
@@ -176,6 +244,152 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
         boolean setViewValue(View view, Object data, String textRepresentation);
     }
 
+    /**
+     * Binds an item to its views directly, instead of going through {@link ExpIndData#getData()}.
+     *
+     * When a RowBinder is set, the adapter doesn't call getData() (so it can return null) nor the
+     * ViewBinder: the RowBinder reads the fields of the item and writes them into the views held by
+     * the {@link ViewHolder}, so binding doesn't need a map per item and doesn't allocate anything.
+     *
+     * @param <T> The class of the items
+     */
+    public interface RowBinder<T extends ExpIndData> {
+        /**
+         * Binds the specified item to the specified views.
+         *
+         * @param item the item to bind
+         * @param holder the views of the item/group view, {@link ViewHolder#getView(int)} with
+         *               index i returns the view with resource id toI[i] (for items) or toG[i] (for groups)
+         */
+        void bindRow(T item, ViewHolder holder);
+    }
+
+    /**
+     * Tells the view type of the items, when there are view types other than
+     * {@link #VIEW_TYPE_ITEM} and {@link #VIEW_TYPE_GROUP} (see {@link #addViewType(int, int[], RowBinder)}).
+     *
+     * @param <T> The class of the items
+     */
+    public interface ViewTypeResolver<T extends ExpIndData> {
+        /**
+         * It's called for every row that is shown, so it shouldn't allocate anything.
+         * @return A view type returned by {@link #addViewType(int, int[], RowBinder)},
+         *         {@link #VIEW_TYPE_ITEM} or {@link #VIEW_TYPE_GROUP} (usually if item.isGroup())
+         */
+        int getViewType(T item);
+    }
+
+    /**
+     * The layout, the views and the binder of a view type added by {@link #addViewType(int, int[], RowBinder)}.
+     */
+    private static final class ViewType {
+        final int resource;
+        final int[] to;
+        final RowBinder<ExpIndData> binder;
+
+        ViewType(int resource, int[] to, RowBinder<ExpIndData> binder) {
+            this.resource = resource;
+            this.to = to;
+            this.binder = binder;
+        }
+    }
+
+    /**
+     * Runs the tasks on the main thread in a batch (see {@link #beginBatch()}), so that the
+     * changes that the tree notifies one at a time while it applies a submitted tree or the
+     * loaded children cause a single {@link #notifyDataSetChanged()}.
+     */
+    private final class BatchExecutor implements Executor {
+        private final Executor mMainExecutor = new MainThreadExecutor();
+
+        @Override
+        public void execute(final Runnable command) {
+            mMainExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    beginBatch();
+                    try {
+                        command.run();
+                    } finally {
+                        endBatch();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Receives the timings of the adapter, measured on the main thread with System.nanoTime().
+     * While a MetricsListener is set the adapter also emits android.os.Trace sections (on API 18+)
+     * named "ExpInd expandGroup", "ExpInd collapseGroup", "ExpInd inflate" and "ExpInd bind", so
+     * that they show up in systrace. The methods are called on the main thread, during the
+     * measured calls, so they should only record the values (e.g. in a histogram).
+     */
+    public interface MetricsListener {
+        /**
+         * Called after {@link #expandGroup(int)} or {@link #collapseGroup(int)}.
+         * @param position The position of the group
+         * @param expanded True if the group was expanded, false if it was collapsed
+         * @param rowsCount The number of rows inserted or removed below the group
+         * @param nanos The duration of the call, including {@link #notifyDataSetChanged()}
+         */
+        void onGroupToggled(int position, boolean expanded, int rowsCount, long nanos);
+
+        /**
+         * Called after {@link #getView(int, View, ViewGroup)}. The convert view reuse rate is
+         * the ratio of the calls with reused = true.
+         * @param position The position of the row
+         * @param reused True if the convert view was reused, false if a view was inflated or
+         *               taken from the views inflated by {@link #preinflate(ViewGroup, int, int, Executor)}
+         * @param inflateNanos The time spent inflating the view and looking up its views, 0 if reused
+         * @param bindNanos The time spent binding the item to the views
+         * @param findViewByIdCount The number of findViewById() calls on the main thread, 0 if
+         *                          reused (the views are kept in a {@link ViewHolder}) or pre-inflated
+         */
+        void onViewBound(int position, boolean reused, long inflateNanos, long bindNanos, int findViewByIdCount);
+    }
+
+    /**
+     * The views of an item/group view that are mapped by toI/toG (or by the ids passed to
+     * {@link #addViewType(int, int[], RowBinder)} for the other view types). They are looked up once,
+     * when the item/group view is inflated, and then kept in the view's tag (with key
+     * R.id.expindlistview_view_holder) so that binding doesn't need to call findViewById().
+     */
+    public static class ViewHolder {
+        /**
+         * The item/group view.
+         */
+        public final View itemView;
+        private final View[] mViews;
+        /**
+         * The background that draws the indentation, if there is an {@link IndentationRenderer}.
+         */
+        private IndentationDrawable mIndentation;
+
+        ViewHolder(View itemView, int[] to) {
+            this.itemView = itemView;
+            mViews = new View[to.length];
+            for (int i = 0; i < to.length; i++)
+                mViews[i] = itemView.findViewById(to[i]);
+        }
+
+        /**
+         * @param index An index i of the array toI (for items) or toG (for groups)
+         * @return The view with resource id toI[i] or toG[i], or null if the item/group view
+         *         doesn't contain it
+         */
+        public View getView(int index) {
+            return mViews[index];
+        }
+
+        /**
+         * @return The length of the array toI (for items) or toG (for groups)
+         */
+        public int getViewCount() {
+            return mViews.length;
+        }
+    }
+
     /**
      *
      * @param context The current context.
@@ -202,9 +416,63 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
         mToG = toG;
 
         mInflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        mPaddingPixels = getPaddingPixels(mPaddingDP);
+        mItemPool = new ViewPool(resourceItem, toI);
+        mGroupPool = new ViewPool(resourceGroup, toG);
+
+        mTree = new ExpIndTree<ExpIndData>();
+        mTree.setListener(new ExpIndTree.Listener() {
+            @Override
+            public void onItemRangeChanged(int positionStart, int itemCount) {
+                notifyTreeChanged();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                notifyTreeChanged();
+            }
 
-        mGroups = new HashMap<ExpIndData, List<? extends ExpIndData>>();
-        mData = new ArrayList<ExpIndData>();
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                notifyTreeChanged();
+            }
+
+            @Override
+            public void onItemMoved(int fromPosition, int toPosition) {
+                notifyTreeChanged();
+            }
+        });
+    }
+
+    private void notifyTreeChanged() {
+        if (!mCallerChange || mNotifyOnChange) notifyDataSetChanged();
+    }
+
+    /**
+     * Set the loader of the children of the items that implement {@link LazyNode}. When such an
+     * item is expanded the placeholder returned by the loader is shown below it until the children
+     * are loaded. Then the placeholder is replaced by the children and the adapter is notified.
+     * @param loader Loads the children, T is the class of your items
+     * @param executor Executor where {@link ExpIndTree.ChildrenLoader#loadChildren(ExpIndNode)} is called
+     *                 (e.g. AsyncTask.THREAD_POOL_EXECUTOR). The other methods of the loader are
+     *                 called on the main thread.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ExpIndData> void setChildrenLoader(ExpIndTree.ChildrenLoader<T> loader, Executor executor) {
+        mTree.setChildrenLoader((ExpIndTree.ChildrenLoader<ExpIndData>) loader, executor, new BatchExecutor());
+    }
+
+    /**
+     * Show the children of the groups with many children a page at a time: when such a group is
+     * expanded only its first pageSize children are shown, followed by a "more" row created by
+     * factory, whose group size is the number of children not shown yet. Expanding/toggling the
+     * more row shows the next page.
+     * @param pageSize The number of children in a page, 0 to show all the children at once
+     * @param factory Creates the more rows, T is the class of your items
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ExpIndData> void setPaging(int pageSize, ExpIndTree.MoreRowFactory<T> factory) {
+        mTree.setPaging(pageSize, (ExpIndTree.MoreRowFactory<ExpIndData>) factory);
     }
 
     /**
@@ -214,110 +482,326 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
      */
     public void setPaddingDP(int paddingDP) {
         mPaddingDP = paddingDP;
+        mPaddingPixels = getPaddingPixels(mPaddingDP);
+    }
+
+    /**
+     * Inflate item and group views in background, so that getView() doesn't have to inflate them
+     * on the main thread when the list is laid out the first time or when a big group is expanded.
+     * The views are handed to the main thread as soon as each one is ready and getView() uses
+     * them when there is no convert view to reuse, so call it before setting the adapter to the
+     * list (e.g. with the number of rows that fit in the screen) or before expanding a big group.
+     *
+     * Views that can't be inflated off the main thread (e.g. views that create a Handler) are
+     * inflated by getView() as usual.
+     * @param parent The ListView the views will be shown in, used only to create their layout params
+     * @param itemCount The number of item views to inflate
+     * @param groupCount The number of group views to inflate
+     * @param executor Executor where the views are inflated (e.g. AsyncTask.THREAD_POOL_EXECUTOR)
+     */
+    public void preinflate(ViewGroup parent, int itemCount, int groupCount, Executor executor) {
+        Executor mainExecutor = new MainThreadExecutor();
+        // LayoutInflater isn't thread safe, every task gets its own
+        if (itemCount > 0)
+            mItemPool.preinflate(mInflater.cloneInContext(mContext), parent, itemCount, executor, mainExecutor);
+        if (groupCount > 0)
+            mGroupPool.preinflate(mInflater.cloneInContext(mContext), parent, groupCount, executor, mainExecutor);
+    }
+
+    /**
+     * Draw the indentation of the rows (guide lines and colored bands) with renderer, instead of
+     * using a view in the layouts. The rows are indented by {@link IndentationRenderer#getOffset(int)}
+     * instead of the padding set by {@link #setPaddingDP(int)}. It has to be called before the
+     * adapter is set to the ListView, since the renderer is put in the background of the views
+     * when they are bound the first time.
+     * @param renderer The renderer, null to indent the rows only by their padding
+     */
+    public void setIndentationRenderer(IndentationRenderer renderer) {
+        mIndentationRenderer = renderer;
+    }
+
+    /**
+     * Set the cache of the text layouts shown by the {@link TextLayoutView}s of the rows: every
+     * time a row is bound, the layouts of the next prefetchCount rows in the direction of the
+     * scroll are built in background, so that they are ready when those rows are bound.
+     * The cache is cleared by {@link #onConfigurationChanged(Configuration)}.
+     * @param cache The cache, null to stop prefetching
+     * @param prefetchCount The number of rows whose layouts are built ahead
+     * @param <T> The class of the items, every item in the adapter must be a T
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ExpIndData> void setTextLayoutCache(TextLayoutCache<T> cache, int prefetchCount) {
+        mTextLayoutCache = (TextLayoutCache<ExpIndData>) cache;
+        mPrefetchCount = prefetchCount;
+    }
+
+    /**
+     * If your activity handles the configuration changes by itself (android:configChanges) call
+     * this method from onConfigurationChanged(), so that the indentation is updated when the
+     * screen density changes.
+     * @param newConfig The new configuration
+     */
+    public void onConfigurationChanged(Configuration newConfig) {
+        mPaddingPixels = getPaddingPixels(mPaddingDP);
+        if (mTextLayoutCache != null)
+            mTextLayoutCache.clear();
+        notifyDataSetChanged();
     }
 
     public void add(ExpIndData item) {
-        mData.add(item);
+        mTree.add(item);
         if (mNotifyOnChange) notifyDataSetChanged();
     }
 
     public void addAll(Collection<? extends ExpIndData> data) {
-        mData.addAll(data);
+        mTree.addAll(data);
         if (mNotifyOnChange) notifyDataSetChanged();
     }
 
     public void clear() {
-        mData.clear();
-        mGroups.clear();
+        mTree.clear();
         if (mNotifyOnChange) notifyDataSetChanged();
     }
 
+    /**
+     * Replace all the items with "items" (e.g. when new comments arrive), keeping the collapsed groups
+     * collapsed. The new items are compared with the current ones on executor and then they replace
+     * them on the main thread. If this method is called again before that, only the last items are
+     * shown. All the changes cause a single {@link #notifyDataSetChanged()}.
+     * The new items are read on executor, so they must not be modified after this call (see
+     * {@link ExpIndTree#submitTree(List, Executor, Executor)}).
+     * @param items All the items, like the items passed to {@link #addAll(Collection)}
+     * @param executor Executor where the items are compared (e.g. AsyncTask.THREAD_POOL_EXECUTOR)
+     */
+    public void submitTree(List<? extends ExpIndData> items, Executor executor) {
+        mTree.submitTree(items, executor, new BatchExecutor());
+    }
+
     public void insert(ExpIndData item, int index) {
-        mData.add(index, item);
+        mTree.insert(item, index);
         if (mNotifyOnChange) notifyDataSetChanged();
     }
 
     public void remove(ExpIndData item) {
-        mData.remove(item);
-        if (mGroups.containsKey(item))
-            mGroups.remove(item);
+        mTree.remove(item);
         if (mNotifyOnChange) notifyDataSetChanged();
     }
 
     @Override
     public int getCount() {
-        return mData.size();
+        return mTree.size();
     }
 
     @Override
     public ExpIndData getItem(int i) {
-        return mData.get(i);
+        return mTree.get(i);
     }
 
     @Override
     public long getItemId(int position) {
-        return position;
+        return mTree.getItemId(position);
+    }
+
+    /**
+     * @return Always true: the id of an item doesn't depend on its position, see {@link StableIdData}.
+     */
+    @Override
+    public boolean hasStableIds() {
+        return true;
     }
 
     @Override
     public int getViewTypeCount() {
-        return 2;
+        return 2 + mViewTypes.size();
     }
 
     @Override
     public int getItemViewType(int position) {
-        return getItem(position).isGroup() ? VIEW_TYPE_GROUP : VIEW_TYPE_ITEM;
+        return resolveViewType(getItem(position));
+    }
+
+    private int resolveViewType(ExpIndData item) {
+        if (mViewTypeResolver != null)
+            return mViewTypeResolver.getViewType(item);
+        return item.isGroup() ? VIEW_TYPE_GROUP : VIEW_TYPE_ITEM;
+    }
+
+    /**
+     * Add a view type, with its own layout and binder. The views of every view type are recycled
+     * separately. It has to be called before the adapter is set to the ListView, since ListView
+     * reads {@link #getViewTypeCount()} only once.
+     * @param resource Resource identifier of the layout of the rows of this type
+     * @param to The resource ids of the views passed to rowBinder through the {@link ViewHolder}
+     * @param rowBinder Binds the items of this type to the views
+     * @param <T> The class of the items of this type
+     * @return The view type, to be returned by the {@link ViewTypeResolver} for the items of this type
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ExpIndData> int addViewType(int resource, int[] to, RowBinder<T> rowBinder) {
+        if (rowBinder == null)
+            throw new IllegalArgumentException("rowBinder can't be null");
+        mViewTypes.add(new ViewType(resource, to, (RowBinder<ExpIndData>) rowBinder));
+        return VIEW_TYPE_GROUP + mViewTypes.size();
+    }
+
+    /**
+     * Sets the resolver that tells the view type of every item. When it's null (the default)
+     * the items are shown with the item layout and the groups with the group layout.
+     *
+     * @param resolver the resolver, or null to remove it
+     * @param <T> The class of the items, every item in the adapter must be a T
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ExpIndData> void setViewTypeResolver(ViewTypeResolver<T> resolver) {
+        mViewTypeResolver = (ViewTypeResolver<ExpIndData>) resolver;
+    }
+
+    private ViewType getViewType(int viewType) {
+        int index = viewType - VIEW_TYPE_GROUP - 1;
+        if (index < 0 || index >= mViewTypes.size())
+            throw new IllegalStateException("unkown view type");
+        return mViewTypes.get(index);
     }
 
     @Override
     public View getView(int i, View convertView, ViewGroup parent) {
         View view;
+        ViewHolder holder;
+        final ExpIndData item = getItem(i);
+        final int viewType = resolveViewType(item);
+        final MetricsListener metrics = mMetricsListener;
+        final long start = metrics != null ? System.nanoTime() : 0;
+        int findViewByIdCount = 0;
 
         if (convertView == null) {
+            if (metrics != null) beginSection("ExpInd inflate");
             int resource;
-            switch (getItemViewType(i)) {
+            int[] to;
+            ViewPool pool;
+            switch (viewType) {
                 case VIEW_TYPE_ITEM:
                     resource = mResourceItem;
+                    to = mToI;
+                    pool = mItemPool;
                     break;
                 case VIEW_TYPE_GROUP:
                     resource = mResourceGroup;
+                    to = mToG;
+                    pool = mGroupPool;
                     break;
                 default:
-                    throw new IllegalStateException("unkown view type");
+                    ViewType type = getViewType(viewType);
+                    resource = type.resource;
+                    to = type.to;
+                    pool = null;
+                    break;
             }
-            view = mInflater.inflate(resource, parent, false);
+            holder = pool != null ? pool.poll() : null;
+            if (holder != null) {
+                view = holder.itemView;
+            } else {
+                view = mInflater.inflate(resource, parent, false);
+                holder = new ViewHolder(view, to);
+                findViewByIdCount = to.length;
+            }
+            view.setTag(R.id.expindlistview_view_holder, holder);
+            if (metrics != null) endSection();
         } else {
             view = convertView;
+            holder = (ViewHolder) view.getTag(R.id.expindlistview_view_holder);
         }
 
-        switch (getItemViewType(i)) {
+        final long inflated = metrics != null ? System.nanoTime() : 0;
+        if (metrics != null) beginSection("ExpInd bind");
+        switch (viewType) {
             case VIEW_TYPE_ITEM:
-                bindView(i, view, mFromI, mToI, getItemViewBinder());
+                if (mItemRowBinder != null)
+                    mItemRowBinder.bindRow(item, holder);
+                else
+                    bindView(item, holder, mFromI, getItemViewBinder());
                 break;
             case VIEW_TYPE_GROUP:
-                bindView(i, view, mFromG, mToG, getGroupViewBinder());
+                if (mGroupRowBinder != null)
+                    mGroupRowBinder.bindRow(item, holder);
+                else
+                    bindView(item, holder, mFromG, getGroupViewBinder());
                 break;
             default:
-                throw new IllegalStateException("unkown view type");
+                getViewType(viewType).binder.bindRow(item, holder);
+                break;
         }
 
-        view.setPadding(getPaddingPixels(mPaddingDP) * getItem(i).getIndentation(),0,0,0);
+        if (mIndentationRenderer != null) {
+            if (holder.mIndentation == null)
+                holder.mIndentation = addIndentationBackground(view);
+            holder.mIndentation.setIndentation(item.getIndentation());
+            view.setPadding(mIndentationRenderer.getOffset(item.getIndentation()),0,0,0);
+        } else {
+            view.setPadding(mPaddingPixels * item.getIndentation(),0,0,0);
+        }
+        if (mTextLayoutCache != null)
+            prefetchTextLayouts(i);
+        if (metrics != null) {
+            endSection();
+            long end = System.nanoTime();
+            metrics.onViewBound(i, convertView != null, inflated - start, end - inflated, findViewByIdCount);
+        }
         return view;
     }
 
+    /**
+     * Build in background the text layouts of the rows that are going to be shown next, i.e. the
+     * ones after position when scrolling down and the ones before it when scrolling up.
+     */
+    private void prefetchTextLayouts(int position) {
+        int step = position >= mLastBoundPosition ? 1 : -1;
+        mLastBoundPosition = position;
+        int count = getCount();
+        for (int k = 1; k <= mPrefetchCount; k++) {
+            int next = position + step * k;
+            if (next < 0 || next >= count)
+                break;
+            mTextLayoutCache.prefetch(getItem(next));
+        }
+    }
+
+    /**
+     * Put an {@link IndentationDrawable} over the background of view.
+     */
+    @SuppressWarnings("deprecation")
+    private IndentationDrawable addIndentationBackground(View view) {
+        IndentationDrawable indentation = new IndentationDrawable(mIndentationRenderer);
+        Drawable background = view.getBackground();
+        view.setBackgroundDrawable(background == null ? indentation :
+                new LayerDrawable(new Drawable[] {background, indentation}));
+        return indentation;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+            Trace.beginSection(name);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+            Trace.endSection();
+    }
+
     private int getPaddingPixels(int mPaddingDP) {
         Resources r = mContext.getResources();
         return (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, mPaddingDP, r.getDisplayMetrics());
     }
 
-    private void bindView(int position, View view, String[] from, int[] to, ViewBinder binder) {
-        final Map dataSet = mData.get(position).getData();
+    private void bindView(ExpIndData item, ViewHolder holder, String[] from, ViewBinder binder) {
+        final Map dataSet = item.getData();
         if (dataSet == null) {
             return;
         }
-        final int count = to.length;
+        final int count = holder.getViewCount();
         for (int i = 0; i < count; i++) {
-            final View v = view.findViewById(to[i]);
+            final View v = holder.getView(i);
             if (v != null) {
                 final Object data = dataSet.get(from[i]);
                 String text = data == null ? "" : data.toString();
@@ -370,7 +854,9 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
      * reflected in the attached view.
      *
      * The default is true, and calling notifyDataSetChanged()
-     * resets the flag to true.
+     * resets the flag to true. The changes that aren't made by the
+     * caller (e.g. loaded children or a submitted tree) are always
+     * notified.
      *
      * @param notifyOnChange if true, modifications to the list will
      * automatically call {@link
@@ -382,10 +868,36 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
 
     @Override
     public void notifyDataSetChanged() {
+        if (mBatchDepth > 0) {
+            mChangedInBatch = true;
+            return;
+        }
         super.notifyDataSetChanged();
         mNotifyOnChange = true;
     }
 
+    /**
+     * Start a batch of changes (e.g. adding many items one at a time): until {@link #endBatch()}
+     * {@link #notifyDataSetChanged()} is delayed, so that {@link #endBatch()} calls it only once.
+     * Unlike {@link #setNotifyOnChange(boolean)}, calling notifyDataSetChanged() during the batch
+     * doesn't end it. Batches can be nested.
+     */
+    public void beginBatch() {
+        mBatchDepth++;
+    }
+
+    /**
+     * End the batch started by {@link #beginBatch()}. Call it in a finally block.
+     */
+    public void endBatch() {
+        if (mBatchDepth == 0)
+            throw new IllegalStateException("endBatch() without beginBatch()");
+        if (--mBatchDepth == 0 && mChangedInBatch) {
+            mChangedInBatch = false;
+            notifyDataSetChanged();
+        }
+    }
+
     /**
      * Returns the {@link ViewBinder} used to bind data to item views.
      *
@@ -424,6 +936,67 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
         mItemViewBinder = viewBinder;
     }
 
+    /**
+     * Returns the {@link RowBinder} used to bind item views.
+     *
+     * @return a RowBinder or null if the binder does not exist
+     */
+    public RowBinder<? extends ExpIndData> getItemRowBinder() {
+        return mItemRowBinder;
+    }
+
+    /**
+     * Sets the binder used to bind item views. When it's not null it's used instead of the
+     * keys in fromI and the item ViewBinder.
+     *
+     * @param rowBinder the binder used to bind item views, can be null to
+     * remove the existing binder
+     * @param <T> The class of the items, every item in the adapter must be a T
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ExpIndData> void setItemRowBinder(RowBinder<T> rowBinder) {
+        mItemRowBinder = (RowBinder<ExpIndData>) rowBinder;
+    }
+
+    /**
+     * Returns the {@link RowBinder} used to bind group views.
+     *
+     * @return a RowBinder or null if the binder does not exist
+     */
+    public RowBinder<? extends ExpIndData> getGroupRowBinder() {
+        return mGroupRowBinder;
+    }
+
+    /**
+     * Sets the binder used to bind group views. When it's not null it's used instead of the
+     * keys in fromG and the group ViewBinder.
+     *
+     * @param rowBinder the binder used to bind group views, can be null to
+     * remove the existing binder
+     * @param <T> The class of the items, every item in the adapter must be a T
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ExpIndData> void setGroupRowBinder(RowBinder<T> rowBinder) {
+        mGroupRowBinder = (RowBinder<ExpIndData>) rowBinder;
+    }
+
+    /**
+     * @return The MetricsListener or null if none is set
+     */
+    public MetricsListener getMetricsListener() {
+        return mMetricsListener;
+    }
+
+    /**
+     * Sets the listener that receives the timings of the adapter. When it's null (the default)
+     * nothing is measured, so the only overhead is a null check per call.
+     *
+     * @param metricsListener the listener, or null to stop measuring
+     */
+    public void setMetricsListener(MetricsListener metricsListener) {
+        mMetricsListener = metricsListener;
+    }
+
 
     /**
      * Called by bindView() to set the text for a TextView but only if
@@ -484,21 +1057,30 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
      * @param position The position of the group that has to be expanded
      */
     public void expandGroup(int position) {
-        ExpIndData firstItem = getItem(position);
-
-        if (!firstItem.isGroup()) {
+        final MetricsListener metrics = mMetricsListener;
+        if (metrics == null) {
+            if (expandTreeGroup(position) > 0 && mNotifyOnChange) notifyDataSetChanged();
             return;
         }
+        beginSection("ExpInd expandGroup");
+        long start = System.nanoTime();
+        int groupSize = expandTreeGroup(position);
+        if (groupSize > 0 && mNotifyOnChange) notifyDataSetChanged();
+        long end = System.nanoTime();
+        endSection();
+        metrics.onGroupToggled(position, true, groupSize, end - start);
+    }
 
-        // get the group of the descendants of firstItem
-        List<? extends ExpIndData> group = mGroups.remove(firstItem);
-
-        mData.addAll(position + 1, group);
-
-        firstItem.setIsGroup(false);
-        firstItem.setGroupSize(0);
-
-        if (mNotifyOnChange) notifyDataSetChanged();
+    /**
+     * Expand the group at position in the tree, which notifies the next page of a more row.
+     */
+    private int expandTreeGroup(int position) {
+        mCallerChange = true;
+        try {
+            return mTree.expandGroup(position);
+        } finally {
+            mCallerChange = false;
+        }
     }
 
     /**
@@ -506,38 +1088,18 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
      * @param position The position of the element that has to be collapsed
      */
     public void collapseGroup(int position) {
-        ExpIndData firstItem = getItem(position);
-
-        if (firstItem.getChildren() == null || firstItem.getChildren().isEmpty())
+        final MetricsListener metrics = mMetricsListener;
+        if (metrics == null) {
+            if (mTree.collapseGroup(position) > 0 && mNotifyOnChange) notifyDataSetChanged();
             return;
-
-        // group containing all the descendants of firstItem
-        List<ExpIndData> group = new ArrayList<ExpIndData>();
-        // stack for depth first search
-        List<ExpIndData> stack = new ArrayList<ExpIndData>();
-        int groupSize = 0;
-
-        for (int i = firstItem.getChildren().size() - 1; i >= 0; i--)
-            stack.add(firstItem.getChildren().get(i));
-
-        while (!stack.isEmpty()) {
-            ExpIndData item = stack.remove(stack.size() - 1);
-            group.add(item);
-            groupSize++;
-            // stop when the item is a leaf or a group
-            if (item.getChildren() != null && !item.getChildren().isEmpty() && !item.isGroup()) {
-                for (int i = item.getChildren().size() - 1; i >= 0; i--)
-                    stack.add(item.getChildren().get(i));
-            }
-
-            mData.remove(item);
         }
-
-        mGroups.put(firstItem, group);
-        firstItem.setIsGroup(true);
-        firstItem.setGroupSize(groupSize);
-
-        if (mNotifyOnChange) notifyDataSetChanged();
+        beginSection("ExpInd collapseGroup");
+        long start = System.nanoTime();
+        int groupSize = mTree.collapseGroup(position);
+        if (groupSize > 0 && mNotifyOnChange) notifyDataSetChanged();
+        long end = System.nanoTime();
+        endSection();
+        metrics.onGroupToggled(position, false, groupSize, end - start);
     }
 
     /**
@@ -552,37 +1114,172 @@ public class MultiLevelExpIndListAdapter extends BaseAdapter {
         }
     }
 
+    /**
+     * Expand all the groups, visible or not, rebuilding the list in a single pass.
+     */
+    public void expandAll() {
+        mTree.expandAll();
+        if (mNotifyOnChange) notifyDataSetChanged();
+    }
+
+    /**
+     * Collapse all the items that have children, visible or not, so that only the top level
+     * items are shown, rebuilding the list in a single pass.
+     */
+    public void collapseAll() {
+        mTree.collapseAll();
+        if (mNotifyOnChange) notifyDataSetChanged();
+    }
+
+    /**
+     * Show only the items with indentation up to depth, rebuilding the list in a single pass:
+     * the items with a lower indentation are expanded and the items with indentation = depth are
+     * collapsed. E.g. collapseToDepth(0) shows only the top level items.
+     * @param depth The indentation of the items to collapse
+     */
+    public void collapseToDepth(int depth) {
+        mTree.collapseToDepth(depth);
+        if (mNotifyOnChange) notifyDataSetChanged();
+    }
+
+    /**
+     * Show only the items in matches and their ancestors, visible or hidden in collapsed groups,
+     * e.g. the results of an {@link ExpIndSearch} over {@link #getAllItems()}. While filtered
+     * the groups can't be expanded or collapsed and adding or removing items throws an
+     * IllegalStateException.
+     * @param matches The items to show
+     */
+    public void setFilter(Collection<? extends ExpIndData> matches) {
+        mTree.setFilter(matches);
+        if (mNotifyOnChange) notifyDataSetChanged();
+    }
+
+    /**
+     * Show all the items again, with the groups that were collapsed before
+     * {@link #setFilter(Collection)}.
+     */
+    public void clearFilter() {
+        if (!mTree.isFiltered())
+            return;
+        mTree.clearFilter();
+        if (mNotifyOnChange) notifyDataSetChanged();
+    }
+
+    public boolean isFiltered() {
+        return mTree.isFiltered();
+    }
+
+    /**
+     * @param item The item to find
+     * @return The position of item or -1 if it isn't shown (e.g. it's hidden in a collapsed
+     *         group, see {@link #revealItem(ExpIndData)}). Costs O(log n).
+     */
+    public int getPositionOf(ExpIndData item) {
+        return mTree.getPositionOf(item);
+    }
+
+    /**
+     * Expand only the collapsed ancestors of item, so that it's shown. The expanded groups cause
+     * a single {@link #notifyDataSetChanged()}. Pass the position to ListView.setSelection() to
+     * scroll to it.
+     * @param item The item to show
+     * @return The position of item or -1 if it isn't in the list (or it isn't shown by the filter)
+     */
+    public int revealItem(ExpIndData item) {
+        beginBatch();
+        mCallerChange = true;
+        try {
+            return mTree.reveal(item);
+        } finally {
+            mCallerChange = false;
+            endBatch();
+        }
+    }
+
+    /**
+     * @return All the items, visible or hidden in collapsed groups, in the order they have when
+     *         all the groups are expanded
+     */
+    public List<ExpIndData> getAllItems() {
+        return mTree.getAllItems();
+    }
+
     /**
      * In onSaveInstanceState, save the groups' indices returned by this function in the Bundle so that later
-     * they can be restored using {@link #restoreGroups(java.util.ArrayList)}. saveGroups()
-     * expand all the groups so you should call this function only inside onSaveInstanceState.
+     * they can be restored using {@link #restoreGroups(java.util.ArrayList)}. The indices are the
+     * positions that the groups would have if all the groups were expanded, but the groups are
+     * not actually expanded. {@link #saveGroupsState()} returns the same indices in a more compact form.
      * @return A list of indices of items that are groups.
      */
     public ArrayList<Integer> saveGroups() {
-        boolean notify = mNotifyOnChange;
-        mNotifyOnChange = false;
-        ArrayList<Integer> groupsIndices = new ArrayList<Integer>();
-        for (int i = 0; i < mData.size(); i++) {
-            if (mData.get(i).isGroup()) {
-                expandGroup(i);
-                groupsIndices.add(i);
-            }
-        }
-        mNotifyOnChange = notify;
-        return groupsIndices;
+        return mTree.saveGroups();
     }
 
     /**
      * Call this function to restore the groups that were collapsed before the configuration change
-     * happened (e.g. screen rotation). See {@link #saveGroups()}.
+     * happened (e.g. screen rotation). See {@link #saveGroups()}. It must be called after adding
+     * all the items, before collapsing any group.
      * @param groupsNum The list of indices of items that are groups and should be collapsed.
      */
     public void restoreGroups(ArrayList<Integer> groupsNum) {
-        boolean notify = mNotifyOnChange;
-        mNotifyOnChange = false;
-        for (int i = groupsNum.size() - 1; i >= 0; i--) {
-            collapseGroup(groupsNum.get(i));
-        }
-        mNotifyOnChange = notify;
+        mTree.restoreGroups(groupsNum);
+        if (mNotifyOnChange) notifyDataSetChanged();
+    }
+
+    /**
+     * Like {@link #saveGroups()}, but the indices are returned as a bitset that can be saved in the
+     * Bundle with putLongArray(): index i is a group if bit (i % 64) of element (i / 64) is set.
+     * It costs O(n) and doesn't modify the list.
+     * @return The bitset of the indices of items that are groups.
+     */
+    public long[] saveGroupsState() {
+        return mTree.saveGroupsState();
+    }
+
+    /**
+     * Restore the groups saved with {@link #saveGroupsState()}. Like {@link #restoreGroups(java.util.ArrayList)}
+     * it must be called after adding all the items, before collapsing any group. All the groups are
+     * restored in a single pass over the list.
+     * @param groups The bitset of the indices of items that are groups.
+     */
+    public void restoreGroupsState(long[] groups) {
+        mTree.restoreGroupsState(groups);
+        if (mNotifyOnChange) notifyDataSetChanged();
+    }
+
+    /**
+     * Save all the items (visible and hidden) and the collapsed groups in a snapshot that can be
+     * put in the Bundle in onSaveInstanceState and that survives the death of the process.
+     * See {@link ExpIndSnapshot}.
+     * @param codec Writes the data of the items
+     * @return The snapshot
+     */
+    public <T extends ExpIndData> ExpIndSnapshot saveSnapshot(ExpIndSnapshot.Codec<T> codec) throws IOException {
+        ExpIndSnapshot snapshot = ExpIndSnapshot.create(mTree.getAllItems(), mTree.saveGroupsState(), codec,
+                mContext.getCacheDir(), mSnapshotFile);
+        mSnapshotFile = snapshot.getFile();
+        return snapshot;
+    }
+
+    /**
+     * Replace the items of the adapter with the items saved in the snapshot and collapse the groups
+     * that were collapsed. The whole tree is restored in a single pass.
+     * @param snapshot A snapshot returned by {@link #saveSnapshot(ExpIndSnapshot.Codec)}
+     * @param codec Reads the data of the items
+     * @return All the items, in the order they have when all the groups are expanded
+     * @throws java.io.FileNotFoundException If the snapshot was saved to a file in the cache
+     *         directory and the system deleted it
+     */
+    public <T extends ExpIndData> List<T> restoreSnapshot(ExpIndSnapshot snapshot, ExpIndSnapshot.Codec<T> codec)
+            throws IOException {
+        List<T> items = new ArrayList<T>();
+        long[] groups = snapshot.restore(items, codec);
+        if (snapshot.getFile() != null)
+            mSnapshotFile = snapshot.getFile();
+        mTree.clear();
+        mTree.addAll(items);
+        mTree.restoreGroupsState(groups);
+        if (mNotifyOnChange) notifyDataSetChanged();
+        return items;
     }
-}
\ No newline at end of file
+}
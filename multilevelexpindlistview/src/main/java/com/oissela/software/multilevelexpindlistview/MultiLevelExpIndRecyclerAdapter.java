@@ -0,0 +1,342 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import android.content.Context;
+import android.support.v7.widget.RecyclerView;
+
+import com.oissela.software.multilevelexpindlistview.MultiLevelExpIndListAdapter.ExpIndData;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Multi-level expandable indentable adapter for RecyclerView.
+ * It works like {@link MultiLevelExpIndListAdapter} (the items have to implement
+ * {@link MultiLevelExpIndListAdapter.ExpIndData}), but instead of calling notifyDataSetChanged()
+ * whenever the list is modified it notifies only the items that actually changed: when a group
+ * is expanded its descendants are notified as inserted, when it's collapsed they are notified as
+ * removed and in both cases the toggled item is notified as changed. So RecyclerView rebinds only
+ * the affected rows and can animate them.
+ *
+ * Since RecyclerView doesn't have a SimpleAdapter-like way to bind the data, you have to extend this
+ * class and implement {@link #onCreateViewHolder(android.view.ViewGroup, int)} and
+ * {@link #onBindViewHolder(RecyclerView.ViewHolder, int)}. {@link #getItemViewType(int)} returns
+ * {@link MultiLevelExpIndListAdapter#VIEW_TYPE_ITEM} or {@link MultiLevelExpIndListAdapter#VIEW_TYPE_GROUP}.
+ *
+ * The adapter has stable ids, see {@link MultiLevelExpIndListAdapter.StableIdData}.
+ *
+ * The children of the items that implement {@link LazyNode} are loaded when the items are
+ * expanded, see {@link #setChildrenLoader(ExpIndTree.ChildrenLoader, Executor)}. The placeholder
+ * and the loaded children are notified as ranges too.
+ */
+public abstract class MultiLevelExpIndRecyclerAdapter<VH extends RecyclerView.ViewHolder>
+        extends RecyclerView.Adapter<VH> {
+    /**
+     * Items and groups.
+     */
+    private final ExpIndTree<ExpIndData> mTree;
+
+    /**
+     * The file of the last snapshot saved or restored, which is replaced by the next snapshot.
+     */
+    private File mSnapshotFile;
+
+    public MultiLevelExpIndRecyclerAdapter() {
+        mTree = new ExpIndTree<ExpIndData>();
+        mTree.setListener(new ExpIndTree.Listener() {
+            @Override
+            public void onItemRangeChanged(int positionStart, int itemCount) {
+                notifyItemRangeChanged(positionStart, itemCount);
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                notifyItemRangeInserted(positionStart, itemCount);
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                notifyItemRangeRemoved(positionStart, itemCount);
+            }
+
+            @Override
+            public void onItemMoved(int fromPosition, int toPosition) {
+                notifyItemMoved(fromPosition, toPosition);
+            }
+        });
+        setHasStableIds(true);
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#setChildrenLoader(ExpIndTree.ChildrenLoader, Executor)}.
+     * @param loader Loads the children, T is the class of your items
+     * @param executor Executor where {@link ExpIndTree.ChildrenLoader#loadChildren(ExpIndNode)} is called
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ExpIndData> void setChildrenLoader(ExpIndTree.ChildrenLoader<T> loader, Executor executor) {
+        mTree.setChildrenLoader((ExpIndTree.ChildrenLoader<ExpIndData>) loader, executor, new MainThreadExecutor());
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#setPaging(int, ExpIndTree.MoreRowFactory)}.
+     * @param pageSize The number of children in a page, 0 to show all the children at once
+     * @param factory Creates the more rows, T is the class of your items
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ExpIndData> void setPaging(int pageSize, ExpIndTree.MoreRowFactory<T> factory) {
+        mTree.setPaging(pageSize, (ExpIndTree.MoreRowFactory<ExpIndData>) factory);
+    }
+
+    public void add(ExpIndData item) {
+        mTree.add(item);
+        if (!mTree.isInBatch()) notifyItemInserted(mTree.size() - 1);
+    }
+
+    public void addAll(Collection<? extends ExpIndData> data) {
+        int position = mTree.size();
+        mTree.addAll(data);
+        if (!mTree.isInBatch()) notifyItemRangeInserted(position, data.size());
+    }
+
+    public void clear() {
+        int count = mTree.size();
+        mTree.clear();
+        if (!mTree.isInBatch()) notifyItemRangeRemoved(0, count);
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#submitTree(List, Executor)}. Only the rows that were
+     * inserted, removed, moved or changed are notified.
+     * @param items All the items, like the items passed to {@link #addAll(Collection)}
+     * @param executor Executor where the items are compared
+     */
+    public void submitTree(List<? extends ExpIndData> items, Executor executor) {
+        mTree.submitTree(items, executor, new MainThreadExecutor());
+    }
+
+    public void insert(ExpIndData item, int index) {
+        mTree.insert(item, index);
+        if (!mTree.isInBatch()) notifyItemInserted(index);
+    }
+
+    public void remove(ExpIndData item) {
+        int position = mTree.remove(item);
+        if (position >= 0 && !mTree.isInBatch()) notifyItemRemoved(position);
+    }
+
+    /**
+     * Start a batch of changes: the changes made until {@link #endBatch()} are notified all at
+     * once by {@link #endBatch()}, as the insertions, removals and moves from the rows before
+     * the batch to the rows after it. Batches can be nested.
+     */
+    public void beginBatch() {
+        mTree.beginBatch();
+    }
+
+    /**
+     * End the batch started by {@link #beginBatch()}. Call it in a finally block.
+     */
+    public void endBatch() {
+        mTree.endBatch();
+    }
+
+    @Override
+    public int getItemCount() {
+        return mTree.size();
+    }
+
+    public ExpIndData getItem(int position) {
+        return mTree.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mTree.getItemId(position);
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return getItem(position).isGroup() ?
+                MultiLevelExpIndListAdapter.VIEW_TYPE_GROUP : MultiLevelExpIndListAdapter.VIEW_TYPE_ITEM;
+    }
+
+    /**
+     * Expand the group at position "posititon".
+     * @param position The position of the group that has to be expanded
+     */
+    public void expandGroup(int position) {
+        int groupSize = mTree.expandGroup(position);
+        if (groupSize > 0 && !mTree.isInBatch()) {
+            notifyItemChanged(position);
+            notifyItemRangeInserted(position + 1, groupSize);
+        }
+    }
+
+    /**
+     * Collapse the descendants of the item at position "position".
+     * @param position The position of the element that has to be collapsed
+     */
+    public void collapseGroup(int position) {
+        int groupSize = mTree.collapseGroup(position);
+        if (groupSize > 0 && !mTree.isInBatch()) {
+            notifyItemChanged(position);
+            notifyItemRangeRemoved(position + 1, groupSize);
+        }
+    }
+
+    /**
+     * Collpase/expand the item at position "position"
+     * @param position The position of the element that has to be collapsed/expanded
+     */
+    public void toggleGroup(int position) {
+        if (getItem(position).isGroup()){
+            expandGroup(position);
+        } else {
+            collapseGroup(position);
+        }
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#expandAll()}.
+     */
+    public void expandAll() {
+        mTree.expandAll();
+        if (!mTree.isInBatch()) notifyDataSetChanged();
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#collapseAll()}.
+     */
+    public void collapseAll() {
+        mTree.collapseAll();
+        if (!mTree.isInBatch()) notifyDataSetChanged();
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#collapseToDepth(int)}.
+     * @param depth The indentation of the items to collapse
+     */
+    public void collapseToDepth(int depth) {
+        mTree.collapseToDepth(depth);
+        if (!mTree.isInBatch()) notifyDataSetChanged();
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#setFilter(Collection)}.
+     * @param matches The items to show
+     */
+    public void setFilter(Collection<? extends ExpIndData> matches) {
+        mTree.setFilter(matches);
+        if (!mTree.isInBatch()) notifyDataSetChanged();
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#clearFilter()}.
+     */
+    public void clearFilter() {
+        if (!mTree.isFiltered())
+            return;
+        mTree.clearFilter();
+        if (!mTree.isInBatch()) notifyDataSetChanged();
+    }
+
+    public boolean isFiltered() {
+        return mTree.isFiltered();
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#getPositionOf(ExpIndData)}.
+     * @param item The item to find
+     * @return The position of item or -1 if it isn't shown
+     */
+    public int getPositionOf(ExpIndData item) {
+        return mTree.getPositionOf(item);
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#revealItem(ExpIndData)}. The expanded groups are
+     * notified as ranges. Pass the position to RecyclerView.scrollToPosition() to scroll to it.
+     * @param item The item to show
+     * @return The position of item or -1 if it isn't in the list (or it isn't shown by the filter)
+     */
+    public int revealItem(ExpIndData item) {
+        return mTree.reveal(item);
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#getAllItems()}.
+     */
+    public List<ExpIndData> getAllItems() {
+        return mTree.getAllItems();
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#saveGroups()}.
+     * @return A list of indices of items that are groups.
+     */
+    public ArrayList<Integer> saveGroups() {
+        return mTree.saveGroups();
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#restoreGroups(java.util.ArrayList)}.
+     * @param groupsNum The list of indices of items that are groups and should be collapsed.
+     */
+    public void restoreGroups(ArrayList<Integer> groupsNum) {
+        mTree.restoreGroups(groupsNum);
+        if (!mTree.isInBatch()) notifyDataSetChanged();
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#saveGroupsState()}.
+     * @return The bitset of the indices of items that are groups.
+     */
+    public long[] saveGroupsState() {
+        return mTree.saveGroupsState();
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#restoreGroupsState(long[])}.
+     * @param groups The bitset of the indices of items that are groups.
+     */
+    public void restoreGroupsState(long[] groups) {
+        mTree.restoreGroupsState(groups);
+        if (!mTree.isInBatch()) notifyDataSetChanged();
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#saveSnapshot(ExpIndSnapshot.Codec)}.
+     * @param codec Writes the data of the items
+     * @param context Used to get the cache directory, where big snapshots are saved
+     * @return The snapshot
+     */
+    public <T extends ExpIndData> ExpIndSnapshot saveSnapshot(ExpIndSnapshot.Codec<T> codec, Context context)
+            throws IOException {
+        ExpIndSnapshot snapshot = ExpIndSnapshot.create(mTree.getAllItems(), mTree.saveGroupsState(), codec,
+                context.getCacheDir(), mSnapshotFile);
+        mSnapshotFile = snapshot.getFile();
+        return snapshot;
+    }
+
+    /**
+     * See {@link MultiLevelExpIndListAdapter#restoreSnapshot(ExpIndSnapshot, ExpIndSnapshot.Codec)}.
+     * @param snapshot A snapshot returned by {@link #saveSnapshot(ExpIndSnapshot.Codec, Context)}
+     * @param codec Reads the data of the items
+     * @return All the items, in the order they have when all the groups are expanded
+     */
+    public <T extends ExpIndData> List<T> restoreSnapshot(ExpIndSnapshot snapshot, ExpIndSnapshot.Codec<T> codec)
+            throws IOException {
+        List<T> items = new ArrayList<T>();
+        long[] groups = snapshot.restore(items, codec);
+        if (snapshot.getFile() != null)
+            mSnapshotFile = snapshot.getFile();
+        mTree.clear();
+        mTree.addAll(items);
+        mTree.restoreGroupsState(groups);
+        if (!mTree.isInBatch()) notifyDataSetChanged();
+        return items;
+    }
+}
@@ -0,0 +1,242 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+
+import com.oissela.software.multilevelexpindlistview.MultiLevelExpIndListAdapter.ExpIndData;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Cache of the text layouts of the items (e.g. the bodies of long comments), so that binding a
+ * row doesn't have to measure and lay out its text. The layouts are shown by a {@link TextLayoutView}.
+ *
+ * The layouts of the rows near the ones that are bound are built in background
+ * ({@link #prefetch(ExpIndData)}, called by {@link MultiLevelExpIndListAdapter} if the cache is
+ * set with {@link MultiLevelExpIndListAdapter#setTextLayoutCache(TextLayoutCache, int)}), the
+ * others are built on the main thread when they are needed. The width of the text depends on the
+ * indentation of the row, so the cache remembers the width measured for every indentation and
+ * uses it to build the layouts in background.
+ *
+ * The cache keeps at most maxSize layouts, the least recently used ones are evicted. A layout is
+ * used only if it was built for the same text (compared by its characters, like
+ * TextUtils.equals()) and width, so it's built again when the width changes. Call {@link #clear()}
+ * when the configuration changes (e.g. the font scale) or when only the spans of a text change.
+ *
+ * @param <T> The class of the items
+ */
+public final class TextLayoutCache<T extends ExpIndData> {
+    /**
+     * Returns the text laid out for the items.
+     *
+     * @param <T> The class of the items
+     */
+    public interface TextProvider<T extends ExpIndData> {
+        /**
+         * Called on the main thread.
+         * @return The text of item
+         */
+        CharSequence getText(T item);
+    }
+
+    private static final class Entry<T> {
+        final T item;
+        final CharSequence text;
+        final int width;
+        final Layout layout;
+        Entry<T> previous;
+        Entry<T> next;
+
+        Entry(T item, CharSequence text, int width, Layout layout) {
+            this.item = item;
+            this.text = text;
+            this.width = width;
+            this.layout = layout;
+        }
+    }
+
+    private final TextPaint mPaint;
+    private final TextProvider<T> mTextProvider;
+    private final int mMaxSize;
+    private final Executor mExecutor;
+
+    /**
+     * The layouts by item (compared by identity, since the text of an item can change while it's
+     * equal to the old one), in a list from the most recently used to the least recently used.
+     * Guarded by this, since the layouts built in background are put from the executor.
+     */
+    private final Map<T, Entry<T>> mEntries = new IdentityHashMap<T, Entry<T>>();
+    private Entry<T> mHead;
+    private Entry<T> mTail;
+
+    /**
+     * The items whose layouts are being built in background. Guarded by this.
+     */
+    private final Set<T> mPending = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+
+    /**
+     * Incremented by {@link #clear()}, so that the layouts that were being built are dropped.
+     * Guarded by this.
+     */
+    private int mGeneration;
+
+    /**
+     * The width measured for every indentation, 0 if it isn't known yet. Used on the main thread.
+     */
+    private int[] mWidths = new int[8];
+
+    /**
+     * @param paint The paint of the text, it must not be modified afterwards
+     * @param textProvider Returns the text of the items
+     * @param maxSize The maximum number of layouts kept
+     * @param executor Executor where the layouts are built in background
+     */
+    public TextLayoutCache(TextPaint paint, TextProvider<T> textProvider, int maxSize, Executor executor) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("maxSize must be > 0");
+        mPaint = paint;
+        mTextProvider = textProvider;
+        mMaxSize = maxSize;
+        mExecutor = executor;
+    }
+
+    /**
+     * Return the layout of the text of item, building it if it isn't cached. The width is
+     * remembered for the indentation of item, so it must be the width measured for item (e.g. in
+     * onMeasure()). Called on the main thread.
+     * @param width The width available for the text
+     */
+    public Layout get(T item, int width) {
+        setWidth(item.getIndentation(), width);
+        CharSequence text = mTextProvider.getText(item);
+        Layout cached = lookUp(item, text, width);
+        if (cached != null)
+            return cached;
+        Layout layout = build(text, width, mPaint);
+        synchronized (this) {
+            put(new Entry<T>(item, text, width, layout));
+        }
+        return layout;
+    }
+
+    /**
+     * @return The layout of the text of item if it's cached for this width, null otherwise. It
+     *         doesn't build the layout nor remember the width. Called on the main thread.
+     */
+    public Layout peek(T item, int width) {
+        return lookUp(item, mTextProvider.getText(item), width);
+    }
+
+    private synchronized Layout lookUp(T item, CharSequence text, int width) {
+        Entry<T> entry = mEntries.get(item);
+        if (entry == null || entry.width != width || !TextUtils.equals(entry.text, text))
+            return null;
+        moveToFront(entry);
+        return entry.layout;
+    }
+
+    /**
+     * Build the layout of the text of item in background, if it isn't cached and a width was
+     * already measured for its indentation. Called on the main thread.
+     */
+    public void prefetch(final T item) {
+        int indentation = item.getIndentation();
+        final int width = indentation < mWidths.length ? mWidths[indentation] : 0;
+        if (width <= 0)
+            return;
+        final CharSequence text = mTextProvider.getText(item);
+        final int generation;
+        synchronized (this) {
+            Entry<T> entry = mEntries.get(item);
+            if ((entry != null && entry.width == width && TextUtils.equals(entry.text, text)) || !mPending.add(item))
+                return;
+            generation = mGeneration;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // the paint can be used by the main thread in the meantime
+                Layout layout = build(text, width, new TextPaint(mPaint));
+                synchronized (TextLayoutCache.this) {
+                    mPending.remove(item);
+                    if (generation == mGeneration)
+                        put(new Entry<T>(item, text, width, layout));
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop all the layouts and the measured widths, e.g. when the configuration changes.
+     * Called on the main thread.
+     */
+    public void clear() {
+        synchronized (this) {
+            mEntries.clear();
+            mPending.clear();
+            mHead = null;
+            mTail = null;
+            mGeneration++;
+        }
+        Arrays.fill(mWidths, 0);
+    }
+
+    private void setWidth(int indentation, int width) {
+        if (indentation >= mWidths.length)
+            mWidths = Arrays.copyOf(mWidths, Math.max(indentation + 1, mWidths.length * 2));
+        mWidths[indentation] = width;
+    }
+
+    private static Layout build(CharSequence text, int width, TextPaint paint) {
+        return new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, true);
+    }
+
+    private void put(Entry<T> entry) {
+        Entry<T> old = mEntries.put(entry.item, entry);
+        if (old != null)
+            unlink(old);
+        link(entry);
+        if (mEntries.size() > mMaxSize) {
+            Entry<T> eldest = mTail;
+            unlink(eldest);
+            mEntries.remove(eldest.item);
+        }
+    }
+
+    private void moveToFront(Entry<T> entry) {
+        if (entry == mHead)
+            return;
+        unlink(entry);
+        link(entry);
+    }
+
+    private void link(Entry<T> entry) {
+        entry.previous = null;
+        entry.next = mHead;
+        if (mHead != null)
+            mHead.previous = entry;
+        mHead = entry;
+        if (mTail == null)
+            mTail = entry;
+    }
+
+    private void unlink(Entry<T> entry) {
+        if (entry.previous != null)
+            entry.previous.next = entry.next;
+        else
+            mHead = entry.next;
+        if (entry.next != null)
+            entry.next.previous = entry.previous;
+        else
+            mTail = entry.previous;
+        entry.previous = null;
+        entry.next = null;
+    }
+}
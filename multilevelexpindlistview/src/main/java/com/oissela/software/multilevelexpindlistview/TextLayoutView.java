@@ -0,0 +1,72 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.text.Layout;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.oissela.software.multilevelexpindlistview.MultiLevelExpIndListAdapter.ExpIndData;
+
+/**
+ * Shows the text of an item laid out by a {@link TextLayoutCache}, so that binding doesn't
+ * measure and lay out the text again. Use it instead of a TextView for long texts that aren't
+ * edited or selected (e.g. the bodies of comments) and bind it in a
+ * {@link MultiLevelExpIndListAdapter.RowBinder} with {@link #setItem(TextLayoutCache, ExpIndData)}.
+ */
+public class TextLayoutView extends View {
+    private TextLayoutCache<ExpIndData> mCache;
+    private ExpIndData mItem;
+    private Layout mLayout;
+
+    public TextLayoutView(Context context) {
+        super(context);
+    }
+
+    public TextLayoutView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public TextLayoutView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+    }
+
+    /**
+     * Show the text of item. If the view was measured for an item with the same indentation (so
+     * the width doesn't change) and the layout is cached, it's used right away and the view is
+     * laid out again only if its height changes. Otherwise the layout is taken from the cache, or
+     * built, when the view is measured.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ExpIndData> void setItem(TextLayoutCache<T> cache, T item) {
+        boolean sameWidth = mItem != null && mItem.getIndentation() == item.getIndentation();
+        mCache = (TextLayoutCache<ExpIndData>) cache;
+        mItem = item;
+        int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        Layout layout = sameWidth && width > 0 ? mCache.peek(mItem, width) : null;
+        if (layout == null || mLayout == null || layout.getHeight() != mLayout.getHeight())
+            requestLayout();
+        mLayout = layout;
+        invalidate();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int textWidth = width - getPaddingLeft() - getPaddingRight();
+        if (mCache != null && textWidth > 0)
+            mLayout = mCache.get(mItem, textWidth);
+        int height = (mLayout != null ? mLayout.getHeight() : 0) + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mLayout == null)
+            return;
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        mLayout.draw(canvas);
+        canvas.restore();
+    }
+}
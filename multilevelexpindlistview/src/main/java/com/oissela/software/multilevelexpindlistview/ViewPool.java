@@ -0,0 +1,71 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.oissela.software.multilevelexpindlistview.MultiLevelExpIndListAdapter.ViewHolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Views of one layout inflated in background before they are needed, see
+ * {@link MultiLevelExpIndListAdapter#preinflate(ViewGroup, int, int, Executor)}. The views are
+ * inflated and their {@link ViewHolder}s are created on an executor, then they are handed to the
+ * main thread one at a time, where getView() takes them instead of inflating new views.
+ */
+final class ViewPool {
+    private final int mResource;
+    private final int[] mTo;
+
+    /**
+     * The views that are ready. Used only on the main thread.
+     */
+    private final List<ViewHolder> mHolders = new ArrayList<ViewHolder>();
+
+    ViewPool(int resource, int[] to) {
+        mResource = resource;
+        mTo = to;
+    }
+
+    /**
+     * Inflate count views on executor.
+     * @param inflater Used only by this call, since LayoutInflater isn't thread safe
+     * @param parent The parent the views will be added to, used only to create their layout params
+     * @param mainExecutor Executor where the views are handed out
+     */
+    void preinflate(final LayoutInflater inflater, final ViewGroup parent, final int count,
+                    Executor executor, final Executor mainExecutor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    final ViewHolder holder;
+                    try {
+                        View view = inflater.inflate(mResource, parent, false);
+                        holder = new ViewHolder(view, mTo);
+                    } catch (RuntimeException e) {
+                        // some views can only be created on the main thread (e.g. views that
+                        // create a Handler): getView() inflates them as usual
+                        return;
+                    }
+                    mainExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            mHolders.add(holder);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * @return A view that is ready, or null if there is none
+     */
+    ViewHolder poll() {
+        return mHolders.isEmpty() ? null : mHolders.remove(mHolders.size() - 1);
+    }
+}
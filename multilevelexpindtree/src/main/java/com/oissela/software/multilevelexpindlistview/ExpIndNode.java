@@ -0,0 +1,35 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import java.util.List;
+
+/**
+ * Interface that every item of an {@link ExpIndTree} has to implement.
+ */
+public interface ExpIndNode {
+    /**
+     * @return The children of this item.
+     */
+    List<? extends ExpIndNode> getChildren();
+
+    /**
+     * @return True if this item is a group.
+     */
+    boolean isGroup();
+
+    /**
+     * @param value True if this item is a group
+     */
+    void setIsGroup(boolean value);
+
+    /**
+     * @param groupSize Set the number of items in the group.
+     *                  Note: groups contained in other groups are counted just as one, not
+     *                  as the number of items that they contain.
+     */
+    void setGroupSize(int groupSize);
+
+    /**
+     * @return The level of indentation
+     */
+    int getIndentation();
+}
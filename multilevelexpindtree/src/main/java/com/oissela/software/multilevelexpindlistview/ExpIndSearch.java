@@ -0,0 +1,254 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Full text search over all the items of a tree, visible or hidden in collapsed groups. The
+ * results can be shown with {@link ExpIndTree#setFilter(Collection)}.
+ *
+ * The items are indexed incrementally by {@link #addAll(Collection)}: the text of every item is
+ * split in words (lowercase letters and digits) and every word is mapped to the items that
+ * contain it. A query matches the items that contain all its words, the last one as a prefix
+ * (so that the results can be updated while the query is typed). Indexing and searching run on
+ * the executor and when a new search is started the previous one is cancelled.
+ *
+ * @param <T> The class of the items
+ */
+public final class ExpIndSearch<T extends ExpIndNode> {
+    /**
+     * Returns the text searched in the items.
+     *
+     * @param <T> The class of the items
+     */
+    public interface TextProvider<T extends ExpIndNode> {
+        /**
+         * Called on the thread of the executor. It must not modify item.
+         * @return The text of item (e.g. the author and the text of a comment), null if none
+         */
+        String getText(T item);
+    }
+
+    /**
+     * Tells which items match, see {@link #filter(Predicate, Callback)}.
+     *
+     * @param <T> The class of the items
+     */
+    public interface Predicate<T extends ExpIndNode> {
+        /**
+         * Called on the thread of the executor. It must not modify item.
+         */
+        boolean matches(T item);
+    }
+
+    /**
+     * Receives the results of a search.
+     *
+     * @param <T> The class of the items
+     */
+    public interface Callback<T extends ExpIndNode> {
+        /**
+         * Called on the thread of the callback executor, unless the search was cancelled.
+         * @param matches The matching items, in the order they were added
+         */
+        void onResult(List<T> matches);
+    }
+
+    private final TextProvider<T> mTextProvider;
+    private final Executor mExecutor;
+    private final Executor mCallbackExecutor;
+
+    /**
+     * The indexed items and, for every word, the bitset of the indices of the items that contain
+     * it. Guarded by this.
+     */
+    private final List<T> mItems = new ArrayList<T>();
+    private final TreeMap<String, BitSet> mWords = new TreeMap<String, BitSet>();
+
+    /**
+     * Incremented by every search and by {@link #cancel()}, the results of the searches started
+     * before are dropped.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /**
+     * @param textProvider Returns the text of the items
+     * @param executor Executor where the items are indexed and searched
+     * @param callbackExecutor Executor where the results are delivered
+     */
+    public ExpIndSearch(TextProvider<T> textProvider, Executor executor, Executor callbackExecutor) {
+        mTextProvider = textProvider;
+        mExecutor = executor;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Index items (e.g. {@link ExpIndTree#getAllItems()}, or the children just loaded). The items
+     * added before aren't indexed again.
+     */
+    public void addAll(Collection<? extends T> items) {
+        final List<T> added = new ArrayList<T>(items);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ExpIndSearch.this) {
+                    for (T item : added) {
+                        int index = mItems.size();
+                        mItems.add(item);
+                        for (String word : split(mTextProvider.getText(item))) {
+                            BitSet indices = mWords.get(word);
+                            if (indices == null) {
+                                indices = new BitSet();
+                                mWords.put(word, indices);
+                            }
+                            indices.set(index);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove all the items from the index and cancel the search in progress.
+     */
+    public void clear() {
+        mGeneration.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ExpIndSearch.this) {
+                    mItems.clear();
+                    mWords.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Search the items that contain all the words of query, cancelling the search in progress.
+     * @param query The words to search, the last one can be incomplete
+     * @param callback Receives the matching items, all the items if query has no words
+     */
+    public void search(String query, final Callback<T> callback) {
+        final int generation = mGeneration.incrementAndGet();
+        final List<String> words = split(query);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mGeneration.get() != generation)
+                    return;
+                List<T> matches;
+                synchronized (ExpIndSearch.this) {
+                    BitSet result = new BitSet();
+                    result.set(0, mItems.size());
+                    for (int i = 0; i < words.size() && !result.isEmpty(); i++) {
+                        String word = words.get(i);
+                        if (i < words.size() - 1) {
+                            BitSet indices = mWords.get(word);
+                            if (indices == null)
+                                result.clear();
+                            else
+                                result.and(indices);
+                        } else {
+                            result.and(getPrefixMatches(word));
+                        }
+                    }
+                    matches = getItems(result);
+                }
+                deliver(generation, matches, callback);
+            }
+        });
+    }
+
+    /**
+     * Search the items that match predicate, cancelling the search in progress.
+     * @param callback Receives the matching items
+     */
+    public void filter(final Predicate<T> predicate, final Callback<T> callback) {
+        final int generation = mGeneration.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mGeneration.get() != generation)
+                    return;
+                List<T> matches = new ArrayList<T>();
+                synchronized (ExpIndSearch.this) {
+                    for (T item : mItems) {
+                        if (predicate.matches(item))
+                            matches.add(item);
+                    }
+                }
+                deliver(generation, matches, callback);
+            }
+        });
+    }
+
+    /**
+     * Cancel the search in progress, its results won't be delivered.
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    private void deliver(final int generation, final List<T> matches, final Callback<T> callback) {
+        if (mGeneration.get() != generation)
+            return;
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mGeneration.get() == generation)
+                    callback.onResult(matches);
+            }
+        });
+    }
+
+    /**
+     * @return The indices of the items that contain a word that starts with prefix
+     */
+    private BitSet getPrefixMatches(String prefix) {
+        BitSet indices = new BitSet();
+        // the words that start with prefix are the ones between prefix and prefix + the biggest char
+        SortedMap<String, BitSet> words = mWords.subMap(prefix, prefix + Character.MAX_VALUE);
+        for (Map.Entry<String, BitSet> entry : words.entrySet())
+            indices.or(entry.getValue());
+        return indices;
+    }
+
+    private List<T> getItems(BitSet indices) {
+        List<T> items = new ArrayList<T>(indices.cardinality());
+        for (int index = indices.nextSetBit(0); index >= 0; index = indices.nextSetBit(index + 1))
+            items.add(mItems.get(index));
+        return items;
+    }
+
+    /**
+     * @return The lowercase words of text, i.e. its runs of letters and digits
+     */
+    static List<String> split(String text) {
+        if (text == null)
+            return Collections.emptyList();
+        List<String> words = new ArrayList<String>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean inWord = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,1368 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The rows shown by a multi-level expandable indentable adapter. The descendants of the collapsed
+ * groups aren't kept anywhere: {@link ExpIndNode#isGroup()} tells which items are collapsed and
+ * the rows of a group are flattened again from {@link ExpIndNode#getChildren()} when it's
+ * expanded, so the memory used doesn't depend on how many groups are collapsed.
+ *
+ * It doesn't know anything about views (it's plain Java, so it can be tested and benchmarked
+ * off-device): the adapters use the values returned by the methods that
+ * modify the rows to notify the changes to their views. The changes that can't be described by
+ * those values (i.e. when the children of a {@link LazyNode} are loaded or when the next page of
+ * children is shown) are notified to its {@link Listener}.
+ *
+ * @param <T> The class of the items. The children of an item must be T too.
+ */
+public final class ExpIndTree<T extends ExpIndNode> {
+    /**
+     * List of items. Inserting or removing a range of k items costs O(log n) (see {@link FlatList}).
+     */
+    private final FlatList<T> mData;
+
+    /**
+     * The groups that are collapsed, visible or not. Only the items are kept, not their
+     * descendants. Used to keep them collapsed when a new tree is submitted. Like all the
+     * maps of the tree it's kept by identity, so it doesn't call hashCode()/equals() of the items
+     * (that can be slow, or change when the group size is set).
+     */
+    private final Set<T> mCollapsed;
+
+    /**
+     * Ids assigned to the items that don't implement {@link StableIdNode}. The ids depend on
+     * the identity of the items and not on their position, so they are kept by identity too.
+     */
+    private final Map<T, Long> mIds;
+
+    /**
+     * Next id to assign. Assigned ids are negative so that they don't clash with the ids of
+     * {@link StableIdNode} items.
+     */
+    private long mNextId = -1;
+
+    /**
+     * Map an item to its parent and to the number of its descendants that are shown when it's
+     * expanded (i.e. the size of its group when it's collapsed). The counts are computed the first
+     * time they are needed and then they are kept up to date when the groups are expanded/collapsed,
+     * so that collapsing a group doesn't have to visit all its descendants.
+     */
+    private final Map<ExpIndNode, Node> mNodes;
+
+    /**
+     * Map every item (visible or hidden in collapsed groups) to its parent, null for the top level
+     * items. It's built the first time it's needed and dropped when the items change.
+     */
+    private Map<T, T> mParents;
+
+    private static final class Node {
+        static final int UNKNOWN = -1;
+
+        final ExpIndNode item;
+        /**
+         * The node of the parent of item, null for the top level items. It's set when the count
+         * of the parent is computed, otherwise it's looked up when it's needed (see
+         * {@link #getParentNode(Node)}).
+         */
+        Node parent;
+        boolean linked;
+        int descendants = UNKNOWN;
+
+        Node(ExpIndNode item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * Receives the changes of the rows that aren't returned by the methods of the tree, i.e. the
+     * rows inserted/removed when children are loaded (on the thread of the callback executor passed
+     * to {@link #setChildrenLoader(ChildrenLoader, Executor, Executor)}), when the next page of
+     * children is shown by {@link #expandGroup(int)} and when a tree submitted with
+     * {@link #submitTree(List, Executor, Executor)} replaces the rows.
+     */
+    public interface Listener {
+        void onItemRangeChanged(int positionStart, int itemCount);
+
+        void onItemRangeInserted(int positionStart, int itemCount);
+
+        void onItemRangeRemoved(int positionStart, int itemCount);
+
+        void onItemMoved(int fromPosition, int toPosition);
+    }
+
+    /**
+     * Loads the children of the {@link LazyNode} items.
+     *
+     * @param <T> The class of the items
+     */
+    public interface ChildrenLoader<T extends ExpIndNode> {
+        /**
+         * Called on the thread of the callback executor when parent is expanded.
+         * @return The row shown below parent while its children are loaded (e.g. a "Loading..." item)
+         */
+        T createPlaceholder(T parent);
+
+        /**
+         * Called on the thread of the load executor. It must not modify parent or the tree.
+         * @return The children of parent
+         */
+        List<? extends T> loadChildren(T parent) throws Exception;
+
+        /**
+         * Called on the thread of the callback executor if {@link #loadChildren(ExpIndNode)}
+         * threw an exception. parent is collapsed again and it can be expanded to retry.
+         */
+        void onLoadFailed(T parent, Exception e);
+    }
+
+    /**
+     * Creates the rows shown after the pages of children, see {@link #setPaging(int, MoreRowFactory)}.
+     *
+     * @param <T> The class of the items
+     */
+    public interface MoreRowFactory<T extends ExpIndNode> {
+        /**
+         * @return The row shown after the first page of children of parent (e.g. a "N more replies"
+         *         item). It's a group whose group size is the number of children that aren't shown yet.
+         */
+        T createMoreRow(T parent);
+    }
+
+    private Listener mListener;
+
+    private int mPageSize;
+    private MoreRowFactory<T> mMoreRowFactory;
+
+    /**
+     * Map the items that show only some pages of their children to their pages, and the more
+     * rows to the same pages.
+     */
+    private final Map<T, Page<T>> mPages;
+    private final Map<T, Page<T>> mMoreRows;
+
+    private static final class Page<T> {
+        final T parent;
+        final T moreRow;
+        int shownChildren;
+
+        Page(T parent, T moreRow, int shownChildren) {
+            this.parent = parent;
+            this.moreRow = moreRow;
+            this.shownChildren = shownChildren;
+        }
+    }
+
+    private ChildrenLoader<T> mLoader;
+    private Executor mLoadExecutor;
+    private Executor mCallbackExecutor;
+
+    /**
+     * Map the items whose children are being loaded to their placeholders, and the placeholders
+     * to their items.
+     */
+    private final Map<T, T> mLoading;
+    private final Map<T, T> mPlaceholders;
+
+    /**
+     * Incremented whenever the rows change, so that a tree submitted with
+     * {@link #submitTree(List, Executor, Executor)} knows if the rows it was compared to are stale.
+     */
+    private int mModCount;
+    /**
+     * The number of trees submitted so far. Only the last one is applied.
+     */
+    private final AtomicInteger mSubmitted = new AtomicInteger();
+
+    /**
+     * The number of {@link #beginBatch()} calls without the matching {@link #endBatch()}, and
+     * the rows when the outermost batch began.
+     */
+    private int mBatchDepth;
+    private List<T> mBatchRows;
+    private int[] mBatchGroups;
+
+    /**
+     * While filtered (see {@link #setFilter(Collection)}), all the items and the bitset of the
+     * groups that were collapsed before the filter was set.
+     */
+    private List<T> mFilterItems;
+    private long[] mFilterGroups;
+
+    public ExpIndTree() {
+        mCollapsed = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+        mData = new FlatList<T>(true);
+        mIds = new IdentityHashMap<T, Long>();
+        mNodes = new IdentityHashMap<ExpIndNode, Node>();
+        mLoading = new IdentityHashMap<T, T>();
+        mPlaceholders = new IdentityHashMap<T, T>();
+        mPages = new IdentityHashMap<T, Page<T>>();
+        mMoreRows = new IdentityHashMap<T, Page<T>>();
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set the loader of the children of the {@link LazyNode} items. When such an item is expanded
+     * the placeholder is inserted right away, the children are loaded with loadExecutor and then
+     * they replace the placeholder on callbackExecutor, which must be the thread that uses the
+     * tree (i.e. the main thread). The changes are notified to the {@link Listener}.
+     */
+    public void setChildrenLoader(ChildrenLoader<T> loader, Executor loadExecutor, Executor callbackExecutor) {
+        mLoader = loader;
+        mLoadExecutor = loadExecutor;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Show the children of the groups with more than pageSize children a page at a time. When
+     * such a group is expanded only its first pageSize children (and their descendants) are
+     * shown, followed by a more row. Expanding the more row shows the next page before it and the
+     * more row is removed after the last page. The groups expanded before this call are not affected.
+     * @param pageSize The number of children in a page, 0 to show all the children at once
+     * @param factory Creates the more rows
+     */
+    public void setPaging(int pageSize, MoreRowFactory<T> factory) {
+        mPageSize = pageSize;
+        mMoreRowFactory = factory;
+    }
+
+    /**
+     * Start a batch of changes. Until the matching {@link #endBatch()} the changes aren't notified
+     * to the {@link Listener} (and the adapters don't notify the changes made by their methods):
+     * {@link #endBatch()} notifies them all at once, as the minimal insertions, removals and moves
+     * from the rows before the batch to the rows after it. Batches can be nested.
+     */
+    public void beginBatch() {
+        if (mBatchDepth++ > 0)
+            return;
+        mBatchRows = new ArrayList<T>(mData);
+        mBatchGroups = getGroupSizes(mBatchRows);
+    }
+
+    /**
+     * End the batch started by {@link #beginBatch()} and notify the changes made during the
+     * outermost batch. Costs O(n).
+     */
+    public void endBatch() {
+        if (mBatchDepth == 0)
+            throw new IllegalStateException("endBatch() without beginBatch()");
+        if (--mBatchDepth > 0)
+            return;
+        List<T> rows = new ArrayList<T>(mData);
+        // the rows before and after the batch are the same instances
+        TreeDiff diff = TreeDiff.compute(mBatchRows, mBatchGroups, rows, getGroupSizes(rows), true);
+        mBatchRows = null;
+        mBatchGroups = null;
+        if (isNotifying())
+            diff.dispatch(mListener);
+    }
+
+    /**
+     * @return True if the changes are being batched, see {@link #beginBatch()}
+     */
+    public boolean isInBatch() {
+        return mBatchDepth > 0;
+    }
+
+    private boolean isNotifying() {
+        return mListener != null && mBatchDepth == 0;
+    }
+
+    /**
+     * @return The group sizes of the rows for {@link TreeDiff}. The sizes of the {@link LazyNode}
+     *         items whose children aren't loaded are unknown, so they are 0.
+     */
+    private int[] getGroupSizes(List<T> rows) {
+        int[] groups = new int[rows.size()];
+        for (int i = 0; i < groups.length; i++) {
+            T row = rows.get(i);
+            Page<T> page = mMoreRows.get(row);
+            if (!row.isGroup())
+                groups[i] = TreeDiff.NOT_GROUP;
+            else if (page != null)
+                groups[i] = getChildren(page.parent).size() - page.shownChildren;
+            else if (isUnloaded(row))
+                groups[i] = 0;
+            else
+                groups[i] = getDescendantsCount(row);
+        }
+        return groups;
+    }
+
+    public int size() {
+        return mData.size();
+    }
+
+    public T get(int position) {
+        return mData.get(position);
+    }
+
+    /**
+     * @return The stable id of the item at position "position"
+     */
+    public long getItemId(int position) {
+        T item = get(position);
+        if (item instanceof StableIdNode)
+            return ((StableIdNode) item).getStableId();
+        Long id = mIds.get(item);
+        if (id == null) {
+            id = mNextId--;
+            mIds.put(item, id);
+        }
+        return id;
+    }
+
+    /**
+     * @throws IllegalStateException If the tree is filtered, see {@link #setFilter(Collection)}
+     */
+    public void add(T item) {
+        checkNotFiltered();
+        mData.add(item);
+        mParents = null;
+        rowAdded(item);
+        mModCount++;
+    }
+
+    /**
+     * @throws IllegalStateException If the tree is filtered, see {@link #setFilter(Collection)}
+     */
+    public void addAll(Collection<? extends T> data) {
+        checkNotFiltered();
+        mData.addAll(data);
+        mParents = null;
+        for (T item : data)
+            rowAdded(item);
+        mModCount++;
+    }
+
+    public void clear() {
+        mModCount++;
+        mData.clear();
+        mCollapsed.clear();
+        mIds.clear();
+        mNodes.clear();
+        mParents = null;
+        // the children that are being loaded are dropped when they arrive
+        mLoading.clear();
+        mPlaceholders.clear();
+        mPages.clear();
+        mMoreRows.clear();
+        mFilterItems = null;
+        mFilterGroups = null;
+    }
+
+    /**
+     * @throws IllegalStateException If the tree is filtered, see {@link #setFilter(Collection)}
+     */
+    public void insert(T item, int index) {
+        checkNotFiltered();
+        mData.add(index, item);
+        mParents = null;
+        rowAdded(item);
+        mModCount++;
+    }
+
+    /**
+     * @param item The item to remove. It's compared by identity, not with equals().
+     * @return The position the item had or -1 if the item wasn't in the list
+     * @throws IllegalStateException If the tree is filtered, see {@link #setFilter(Collection)}
+     */
+    public int remove(T item) {
+        checkNotFiltered();
+        int position = mData.identityIndexOf(item);
+        if (position >= 0) {
+            // the row is counted by its expanded ancestors, which are found before it's removed
+            if (!mNodes.isEmpty())
+                updateAncestors(item, -1);
+            mData.remove(position);
+        }
+        mCollapsed.remove(item);
+        mIds.remove(item);
+        mNodes.remove(item);
+        mParents = null;
+        mModCount++;
+        return position;
+    }
+
+    /**
+     * The rows of a filtered tree aren't its items, so they can't be changed until the filter is
+     * cleared.
+     */
+    private void checkNotFiltered() {
+        if (mFilterItems != null)
+            throw new IllegalStateException("the items can't be added or removed while the tree is filtered");
+    }
+
+    /**
+     * Add the row of item to the counts of its expanded ancestors. The row must already be in
+     * the list, so that its parent can be found.
+     */
+    private void rowAdded(T item) {
+        if (!mNodes.isEmpty())
+            updateAncestors(item, 1);
+    }
+
+    /**
+     * Expand the group at position "posititon". If the item is a more row (see
+     * {@link #setPaging(int, MoreRowFactory)}) the next page is shown instead and the changes
+     * are notified to the {@link Listener}.
+     * @param position The position of the group that has to be expanded
+     * @return The number of items inserted after position, 0 if the item isn't a group or
+     *         it's a more row
+     * @throws IllegalStateException If the item is a {@link LazyNode} whose children aren't
+     *         loaded and no {@link ChildrenLoader} is set
+     */
+    public int expandGroup(int position) {
+        T firstItem = get(position);
+        mModCount++;
+
+        if (!firstItem.isGroup() || mFilterItems != null) {
+            return 0;
+        }
+
+        Page<T> page = mMoreRows.get(firstItem);
+        if (page != null) {
+            showNextPage(position, page);
+            return 0;
+        }
+
+        if (isUnloaded(firstItem) && !mLoading.containsKey(firstItem)) {
+            if (mLoader == null)
+                throw new IllegalStateException("the children of " + firstItem + " can't be loaded without a ChildrenLoader");
+            return loadChildren(position, firstItem);
+        }
+
+        List<? extends ExpIndNode> children = firstItem.getChildren();
+        if (mPageSize > 0 && children != null && children.size() > mPageSize && !mPages.containsKey(firstItem)) {
+            T moreRow = mMoreRowFactory.createMoreRow(firstItem);
+            moreRow.setIsGroup(true);
+            moreRow.setGroupSize(children.size() - mPageSize);
+            Page<T> firstPage = new Page<T>(firstItem, moreRow, mPageSize);
+            mPages.put(firstItem, firstPage);
+            mMoreRows.put(moreRow, firstPage);
+            getNode(firstItem).descendants = Node.UNKNOWN;
+        }
+
+        // the descendants of firstItem are flattened again from its children
+        mCollapsed.remove(firstItem);
+        firstItem.setIsGroup(false);
+        firstItem.setGroupSize(0);
+        List<T> rows = new ArrayList<T>();
+        List<Iterator<? extends T>> stack = new ArrayList<Iterator<? extends T>>();
+        pushChildren(firstItem, stack);
+        flatten(stack, rows);
+        FlatList<T> group = new FlatList<T>();
+        group.addAll(rows);
+        int groupSize = group.size();
+
+        mData.splice(position + 1, group);
+        updateAncestors(firstItem, groupSize);
+
+        return groupSize;
+    }
+
+    /**
+     * Collapse the descendants of the item at position "position".
+     * @param position The position of the element that has to be collapsed
+     * @return The number of items removed after position, 0 if the item has no children
+     */
+    public int collapseGroup(int position) {
+        T firstItem = get(position);
+        mModCount++;
+
+        if (firstItem.isGroup() || mFilterItems != null)
+            return 0;
+
+        int groupSize = getDescendantsCount(firstItem);
+        if (groupSize == 0)
+            return 0;
+
+        // the visible descendants of firstItem are always the groupSize items right after it,
+        // so cut them out all at once. They are flattened again when firstItem is expanded.
+        mData.cut(position + 1, position + 1 + groupSize);
+
+        mCollapsed.add(firstItem);
+        firstItem.setIsGroup(true);
+        firstItem.setGroupSize(groupSize);
+        updateAncestors(firstItem, -groupSize);
+
+        return groupSize;
+    }
+
+    /**
+     * Insert the rows of the next page of children before the more row at position. The more
+     * row is removed if there are no other pages.
+     */
+    private void showNextPage(int position, Page<T> page) {
+        List<? extends T> children = getChildren(page.parent);
+        int childrenCount = children.size();
+        int to = Math.min(childrenCount, page.shownChildren + mPageSize);
+        List<T> rows = new ArrayList<T>();
+        List<Iterator<? extends T>> stack = new ArrayList<Iterator<? extends T>>();
+        stack.add(children.subList(page.shownChildren, to).iterator());
+        flatten(stack, rows);
+        int rowsCount = rows.size();
+        FlatList<T> pageRows = new FlatList<T>();
+        pageRows.addAll(rows);
+        mData.splice(position, pageRows);
+        page.shownChildren = to;
+
+        int delta = rowsCount;
+        boolean last = to == childrenCount;
+        if (last) {
+            mData.remove(position + rowsCount);
+            mPages.remove(page.parent);
+            mMoreRows.remove(page.moreRow);
+            delta--;
+        } else {
+            page.moreRow.setGroupSize(childrenCount - to);
+        }
+        Node parentNode = getNode(page.parent);
+        if (parentNode.descendants != Node.UNKNOWN)
+            parentNode.descendants += delta;
+        updateAncestors(page.parent, delta);
+
+        if (isNotifying()) {
+            mListener.onItemRangeInserted(position, rowsCount);
+            if (last)
+                mListener.onItemRangeRemoved(position + rowsCount, 1);
+            else
+                mListener.onItemRangeChanged(position + rowsCount, 1);
+        }
+    }
+
+    /**
+     * Show the placeholder below the item at position and start loading its children.
+     * @return The number of items inserted after position, i.e. 1
+     */
+    private int loadChildren(int position, final T parent) {
+        final T placeholder = mLoader.createPlaceholder(parent);
+        mData.add(position + 1, placeholder);
+        mLoading.put(parent, placeholder);
+        mPlaceholders.put(placeholder, parent);
+        parent.setIsGroup(false);
+        parent.setGroupSize(0);
+        // parent was counted as a single row by its ancestors, now it's followed by the placeholder
+        getNode(parent).descendants = 1;
+        updateAncestors(parent, 1);
+
+        final ChildrenLoader<T> loader = mLoader;
+        final Executor callbackExecutor = mCallbackExecutor;
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<? extends T> children = null;
+                Exception error = null;
+                try {
+                    children = loader.loadChildren(parent);
+                } catch (Exception e) {
+                    error = e;
+                }
+                final List<? extends T> loadedChildren = children;
+                final Exception loadError = error;
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onChildrenLoaded(loader, parent, placeholder, loadedChildren, loadError);
+                    }
+                });
+            }
+        });
+        return 1;
+    }
+
+    /**
+     * Replace the placeholder of parent with its children. The placeholder can be visible or
+     * hidden, if parent or one of its ancestors was collapsed while loading or if it's in a page
+     * of children that isn't shown anymore.
+     */
+    private void onChildrenLoaded(ChildrenLoader<T> loader, T parent, T placeholder,
+                                  List<? extends T> children, Exception error) {
+        // the tree was cleared or the placeholder was removed while loading
+        if (mLoading.get(parent) != placeholder)
+            return;
+        mLoading.remove(parent);
+        mPlaceholders.remove(placeholder);
+        mModCount++;
+
+        // parent was collapsed while loading
+        boolean collapsed = parent.isGroup();
+
+        List<T> rows = new ArrayList<T>();
+        if (error == null) {
+            ((LazyNode) parent).setLoadedChildren(children);
+            mParents = null;
+            List<Iterator<? extends T>> stack = new ArrayList<Iterator<? extends T>>();
+            stack.add(children.iterator());
+            flatten(stack, rows);
+            // the loaded children can be collapsed groups
+            for (T row : rows) {
+                if (row.isGroup() && !isUnloaded(row)) {
+                    mCollapsed.add(row);
+                    row.setGroupSize(getDescendantsCount(row));
+                }
+            }
+        } else {
+            parent.setIsGroup(true);
+        }
+        getNode(parent).descendants = error == null ? rows.size() : Node.UNKNOWN;
+
+        int position = collapsed ? -1 : mData.identityIndexOf(placeholder);
+        if (collapsed) {
+            // the rows are in the group of parent, which its ancestors count as a single row
+            if (error == null)
+                parent.setGroupSize(rows.size());
+            int parentPosition = mData.identityIndexOf(parent);
+            if (parentPosition >= 0 && isNotifying())
+                mListener.onItemRangeChanged(parentPosition, 1);
+        } else if (position >= 0) {
+            // the rows replace the placeholder in the counts of the expanded ancestors
+            updateAncestors(parent, rows.size() - 1);
+            int count = rows.size();
+            FlatList<T> loadedRows = new FlatList<T>();
+            loadedRows.addAll(rows);
+            mData.remove(position);
+            mData.splice(position, loadedRows);
+            if (isNotifying()) {
+                mListener.onItemRangeRemoved(position, 1);
+                if (count > 0)
+                    mListener.onItemRangeInserted(position, count);
+                if (error != null)
+                    mListener.onItemRangeChanged(position - 1, 1);
+            }
+        } else {
+            // the placeholder is hidden by a collapsed ancestor or by a page of children that
+            // isn't shown, so the counts of all the ancestors are computed again. The group size
+            // of the closest collapsed ancestor changes.
+            Map<T, T> parents = getParents();
+            T owner = null;
+            for (T ancestor = parents.get(parent); ancestor != null; ancestor = parents.get(ancestor)) {
+                Node node = mNodes.get(ancestor);
+                if (node != null)
+                    node.descendants = Node.UNKNOWN;
+                if (owner == null && ancestor.isGroup())
+                    owner = ancestor;
+            }
+            if (owner != null) {
+                owner.setGroupSize(getDescendantsCount(owner));
+                int ownerPosition = mData.identityIndexOf(owner);
+                if (ownerPosition >= 0 && isNotifying())
+                    mListener.onItemRangeChanged(ownerPosition, 1);
+            }
+        }
+
+        if (error != null)
+            loader.onLoadFailed(parent, error);
+    }
+
+    /**
+     * Append to rows the items of the iterators of the stack, in the order they are shown: every
+     * item that isn't a group is followed by its children, by its placeholder if its children
+     * are being loaded or by its shown pages of children and its more row.
+     * @param stack The iterators of the items, the last one is visited first
+     */
+    private void flatten(List<Iterator<? extends T>> stack, List<T> rows) {
+        while (!stack.isEmpty()) {
+            Iterator<? extends T> iterator = stack.get(stack.size() - 1);
+            if (!iterator.hasNext()) {
+                stack.remove(stack.size() - 1);
+                continue;
+            }
+            T item = iterator.next();
+            rows.add(item);
+            if (!item.isGroup())
+                pushChildren(item, stack);
+        }
+    }
+
+    /**
+     * Push the iterators of the rows shown right below item when it's expanded to the stack
+     * used by {@link #flatten(List, List)}.
+     */
+    private void pushChildren(T item, List<Iterator<? extends T>> stack) {
+        T placeholder = mLoading.get(item);
+        if (placeholder != null) {
+            stack.add(Collections.singletonList(placeholder).iterator());
+            return;
+        }
+        List<? extends T> children = getChildren(item);
+        if (children == null || children.isEmpty())
+            return;
+        Page<T> page = mPages.get(item);
+        if (page != null) {
+            stack.add(Collections.singletonList(page.moreRow).iterator());
+            stack.add(children.subList(0, page.shownChildren).iterator());
+        } else {
+            stack.add(children.iterator());
+        }
+    }
+
+    /**
+     * Append item and all its descendants, shown or not, to items.
+     */
+    private void appendAll(T item, List<T> items) {
+        List<Iterator<? extends T>> stack = new ArrayList<Iterator<? extends T>>();
+        stack.add(Collections.singletonList(item).iterator());
+        while (!stack.isEmpty()) {
+            Iterator<? extends T> iterator = stack.get(stack.size() - 1);
+            if (!iterator.hasNext()) {
+                stack.remove(stack.size() - 1);
+                continue;
+            }
+            T descendant = iterator.next();
+            items.add(descendant);
+            List<? extends T> children = getChildren(descendant);
+            if (children != null && !children.isEmpty())
+                stack.add(children.iterator());
+        }
+    }
+
+    /**
+     * @return The children of item, which are T too
+     */
+    @SuppressWarnings("unchecked")
+    private List<? extends T> getChildren(T item) {
+        return (List<? extends T>) item.getChildren();
+    }
+
+    /**
+     * @return True if item is a {@link LazyNode} whose children haven't been loaded
+     */
+    private static boolean isUnloaded(ExpIndNode item) {
+        return item instanceof LazyNode && !((LazyNode) item).areChildrenLoaded();
+    }
+
+    /**
+     * @return The position of item in rows, comparing the identity of the items. Costs O(n).
+     */
+    private static int indexOf(List<?> rows, Object item) {
+        int position = 0;
+        for (Object row : rows) {
+            if (row == item)
+                return position;
+            position++;
+        }
+        return -1;
+    }
+
+    private Node getNode(ExpIndNode item) {
+        Node node = mNodes.get(item);
+        if (node == null) {
+            node = new Node(item);
+            mNodes.put(item, node);
+        }
+        return node;
+    }
+
+    /**
+     * @return The number of descendants of item that are shown when item is expanded. Groups
+     *         inside it are counted just as one.
+     */
+    private int getDescendantsCount(ExpIndNode item) {
+        Node node = getNode(item);
+        if (node.descendants != Node.UNKNOWN)
+            return node.descendants;
+
+        // depth first search that stops at the descendants whose count is already known:
+        // an item is counted when the counts of all its expanded children are known
+        List<Node> stack = new ArrayList<Node>();
+        stack.add(node);
+        while (!stack.isEmpty()) {
+            Node top = stack.get(stack.size() - 1);
+            List<? extends ExpIndNode> children = top.item.getChildren();
+            // the placeholder of an item whose children are being loaded
+            int count = mLoading.containsKey(top.item) ? 1 : 0;
+            // only the shown pages of children, followed by the more row
+            Page<T> page = mPages.get(top.item);
+            if (page != null)
+                count++;
+            boolean known = true;
+            if (children != null) {
+                int childrenCount = page != null ? page.shownChildren : children.size();
+                for (int i = 0; i < childrenCount; i++) {
+                    ExpIndNode child = children.get(i);
+                    Node childNode = getNode(child);
+                    childNode.parent = top;
+                    childNode.linked = true;
+                    count++;
+                    if (child.isGroup())
+                        continue;
+                    if (childNode.descendants == Node.UNKNOWN) {
+                        known = false;
+                        stack.add(childNode);
+                    } else {
+                        count += childNode.descendants;
+                    }
+                }
+            }
+            if (known) {
+                top.descendants = count;
+                stack.remove(stack.size() - 1);
+            }
+        }
+        return node.descendants;
+    }
+
+    /**
+     * Add delta to the counts of the ancestors of item whose expanded descendants include
+     * item's descendants, i.e. up to the first collapsed ancestor. Costs O(depth).
+     */
+    private void updateAncestors(ExpIndNode item, int delta) {
+        for (Node ancestor = getParentNode(getNode(item)); ancestor != null; ancestor = getParentNode(ancestor)) {
+            if (ancestor.descendants != Node.UNKNOWN)
+                ancestor.descendants += delta;
+            if (ancestor.item.isGroup())
+                break;
+        }
+    }
+
+    /**
+     * @return The node of the parent of node's item, null for the top level items. The nodes
+     *         of the items whose parents weren't counted yet (e.g. the children of a group
+     *         collapsed by {@link #restoreGroupsState(long[])} and then expanded, or the rows
+     *         added by {@link #insert(ExpIndNode, int)}) aren't linked to their parents, so their
+     *         parents are looked up in {@link #getParents()}.
+     */
+    private Node getParentNode(Node node) {
+        // the parent was removed since the link was set
+        if (node.parent != null && mNodes.get(node.parent.item) != node.parent)
+            node.linked = false;
+        if (!node.linked) {
+            T parent = getParents().get(node.item);
+            node.parent = parent == null ? null : getNode(parent);
+            node.linked = true;
+        }
+        return node.parent;
+    }
+
+    /**
+     * Return the indices of the groups in the list that we would get expanding all the groups,
+     * without expanding them. They can be saved (e.g. in onSaveInstanceState) and restored with
+     * {@link #restoreGroups(java.util.List)}.
+     * @return A list of indices of items that are groups.
+     */
+    public ArrayList<Integer> saveGroups() {
+        long[] groups = saveGroupsState();
+        ArrayList<Integer> groupsIndices = new ArrayList<Integer>();
+        for (int i = 0; i < groups.length; i++) {
+            long word = groups[i];
+            while (word != 0) {
+                groupsIndices.add(i * 64 + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return groupsIndices;
+    }
+
+    /**
+     * Like {@link #saveGroups()}, but the indices are returned as a bitset: index i is a group
+     * if bit i % 64 of the element i / 64 is set. Costs O(n) and doesn't modify the list.
+     * @return The bitset of the indices of items that are groups.
+     */
+    public long[] saveGroupsState() {
+        if (mFilterGroups != null)
+            return mFilterGroups.clone();
+        return getGroupsState(getAllItems());
+    }
+
+    private static long[] getGroupsState(List<? extends ExpIndNode> items) {
+        long[] groups = new long[(items.size() + 63) / 64];
+        for (int index = 0; index < items.size(); index++) {
+            if (items.get(index).isGroup())
+                groups[index / 64] |= 1L << (index % 64);
+        }
+        int length = groups.length;
+        while (length > 0 && groups[length - 1] == 0)
+            length--;
+        return Arrays.copyOf(groups, length);
+    }
+
+    /**
+     * @return All the items, visible and hidden, in the order they would have if all the groups
+     *         were expanded. Costs O(n) and doesn't modify the list.
+     */
+    public List<T> getAllItems() {
+        if (mFilterItems != null)
+            return new ArrayList<T>(mFilterItems);
+        List<T> items = new ArrayList<T>(mData.size());
+        for (T item : mData) {
+            if (mPlaceholders.containsKey(item))
+                continue;
+            // the children that aren't shown yet follow the more row
+            Page<T> page = mMoreRows.get(item);
+            if (page != null) {
+                List<? extends T> children = getChildren(page.parent);
+                for (int i = page.shownChildren; i < children.size(); i++)
+                    appendAll(children.get(i), items);
+                continue;
+            }
+            // the hidden items are visited in place of their groups, as if the groups were expanded
+            if (item.isGroup())
+                appendAll(item, items);
+            else
+                items.add(item);
+        }
+        return items;
+    }
+
+    /**
+     * Collapse the groups saved by {@link #saveGroups()}.
+     * @param groupsNum The list of indices of items that are groups and should be collapsed.
+     */
+    public void restoreGroups(List<Integer> groupsNum) {
+        long[] groups = new long[0];
+        for (int index : groupsNum) {
+            if (index / 64 >= groups.length)
+                groups = Arrays.copyOf(groups, Math.max(2 * groups.length, index / 64 + 1));
+            groups[index / 64] |= 1L << (index % 64);
+        }
+        restoreGroupsState(groups);
+    }
+
+    /**
+     * Collapse the groups saved by {@link #saveGroupsState()}. The list must contain all the
+     * items, with no collapsed group, like right after adding them.
+     *
+     * All the groups are collapsed in a single pass over the list: every item is either kept or
+     * counted in the group size of its closest collapsed ancestor.
+     * @param groups The bitset of the indices of items that are groups.
+     */
+    public void restoreGroupsState(long[] groups) {
+        applyLayout(Layout.of(mData, groups));
+    }
+
+    /**
+     * Expand all the groups, visible or not. Costs O(n).
+     */
+    public void expandAll() {
+        relayout(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Collapse all the items that have children, visible or not, so that only the top level
+     * items are shown and expanding an item shows only its children. Costs O(n).
+     */
+    public void collapseAll() {
+        relayout(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Show only the items with indentation up to depth: the items with a lower indentation are
+     * expanded and the items with indentation = depth are collapsed. The deeper groups keep their
+     * state. E.g. collapseToDepth(0) shows only the top level items. Costs O(n).
+     * @param depth The indentation (see {@link ExpIndNode#getIndentation()}) of the items to collapse
+     */
+    public void collapseToDepth(int depth) {
+        relayout(depth, depth);
+    }
+
+    /**
+     * Compute all the rows again in a single pass, collapsing the items with children whose
+     * indentation is between minDepth and maxDepth and expanding the items with a lower indentation.
+     */
+    private void relayout(int minDepth, int maxDepth) {
+        clearFilter();
+        List<T> items = getAllItems();
+        dropPlaceholdersAndPages();
+        long[] groups = new long[(items.size() + 63) / 64];
+        for (int index = 0; index < items.size(); index++) {
+            T item = items.get(index);
+            int depth = item.getIndentation();
+            if (depth >= minDepth && (depth <= maxDepth || item.isGroup()))
+                groups[index / 64] |= 1L << (index % 64);
+        }
+        applyLayout(Layout.of(items, groups));
+    }
+
+    /**
+     * Show only the items in matches and their ancestors, visible or hidden in collapsed groups
+     * (e.g. the results of an {@link ExpIndSearch}). The shown items are expanded and the groups
+     * that were collapsed are collapsed again by {@link #clearFilter()}. While filtered
+     * {@link #expandGroup(int)} and {@link #collapseGroup(int)} don't do anything and adding or
+     * removing items throws an IllegalStateException. Costs O(n).
+     * @param matches The items to show, compared by identity
+     */
+    public void setFilter(Collection<? extends T> matches) {
+        if (mFilterItems == null) {
+            List<T> items = getAllItems();
+            mFilterGroups = getGroupsState(items);
+            dropPlaceholdersAndPages();
+            mFilterItems = items;
+        }
+        List<T> items = mFilterItems;
+        Set<T> matching = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+        matching.addAll(matches);
+
+        // a match shows all its ancestors, i.e. the items of the path from the top level item
+        // that still have children to visit
+        boolean[] shown = new boolean[items.size()];
+        int[] path = new int[16];
+        int[] childrenLeft = new int[16];
+        int depth = 0;
+        for (int index = 0; index < items.size(); index++) {
+            while (depth > 0 && childrenLeft[depth - 1] == 0)
+                depth--;
+            if (depth > 0)
+                childrenLeft[depth - 1]--;
+            T item = items.get(index);
+            if (matching.contains(item)) {
+                shown[index] = true;
+                for (int d = depth - 1; d >= 0 && !shown[path[d]]; d--)
+                    shown[path[d]] = true;
+            }
+            int childrenCount = item.getChildren() == null ? 0 : item.getChildren().size();
+            if (childrenCount > 0) {
+                if (depth == path.length) {
+                    path = Arrays.copyOf(path, depth * 2);
+                    childrenLeft = Arrays.copyOf(childrenLeft, depth * 2);
+                }
+                path[depth] = index;
+                childrenLeft[depth] = childrenCount;
+                depth++;
+            }
+        }
+
+        List<T> rows = new ArrayList<T>();
+        for (int index = 0; index < items.size(); index++) {
+            if (!shown[index])
+                continue;
+            T item = items.get(index);
+            if (!isUnloaded(item)) {
+                item.setIsGroup(false);
+                item.setGroupSize(0);
+            }
+            rows.add(item);
+        }
+        mData.clear();
+        mData.addAll(rows);
+        mNodes.clear();
+        mModCount++;
+    }
+
+    /**
+     * Show all the items again, with the groups that were collapsed before {@link #setFilter(Collection)}.
+     */
+    public void clearFilter() {
+        if (mFilterItems == null)
+            return;
+        List<T> items = mFilterItems;
+        long[] groups = mFilterGroups;
+        mFilterItems = null;
+        mFilterGroups = null;
+        applyLayout(Layout.of(items, groups));
+    }
+
+    /**
+     * @return True if only some items are shown, see {@link #setFilter(Collection)}
+     */
+    public boolean isFiltered() {
+        return mFilterItems != null;
+    }
+
+    /**
+     * @param item The item to find, compared by identity
+     * @return The position of item or -1 if it isn't shown (e.g. it's hidden in a collapsed
+     *         group, see {@link #reveal(ExpIndNode)}). Costs O(log n).
+     */
+    public int getPositionOf(T item) {
+        return mData.identityIndexOf(item);
+    }
+
+    /**
+     * Show item, expanding only its collapsed ancestors (and showing the pages of children that
+     * contain it). The changes are notified to the {@link Listener} at once, as a batch (see
+     * {@link #beginBatch()}). The ancestors are found in
+     * O(depth) through the parents of the items, which are mapped the first time this is called
+     * after the items change (in O(n)).
+     * @param item The item to show, compared by identity
+     * @return The position of item or -1 if it isn't in the tree (or it isn't shown by the filter)
+     */
+    public int reveal(T item) {
+        int position = mData.identityIndexOf(item);
+        if (position >= 0 || mFilterItems != null)
+            return position;
+
+        List<T> path = getPath(item);
+        if (path == null)
+            return -1;
+        beginBatch();
+        try {
+            for (int i = 0; i < path.size() - 1; i++) {
+                T ancestor = path.get(i);
+                if (ancestor.isGroup())
+                    expandGroup(mData.identityIndexOf(ancestor));
+                Page<T> page = mPages.get(ancestor);
+                if (page != null) {
+                    int childIndex = indexOf(getChildren(ancestor), path.get(i + 1));
+                    while (mPages.get(ancestor) == page && childIndex >= page.shownChildren)
+                        showNextPage(mData.identityIndexOf(page.moreRow), page);
+                }
+            }
+        } finally {
+            endBatch();
+        }
+        return mData.identityIndexOf(item);
+    }
+
+    /**
+     * @return The ancestors of item from the top level one, followed by item, or null if item
+     *         isn't in the tree
+     */
+    private List<T> getPath(T item) {
+        Map<T, T> parents = getParents();
+        if (!parents.containsKey(item))
+            return null;
+        List<T> path = new ArrayList<T>();
+        for (T each = item; each != null; each = parents.get(each))
+            path.add(each);
+        Collections.reverse(path);
+        return path;
+    }
+
+    private Map<T, T> getParents() {
+        if (mParents != null)
+            return mParents;
+        mParents = new IdentityHashMap<T, T>();
+        // the items are in depth first order, so the parent of an item is the closest ancestor
+        // that still has children to visit
+        List<T> ancestors = new ArrayList<T>();
+        List<Integer> childrenLeft = new ArrayList<Integer>();
+        for (T item : getAllItems()) {
+            int depth = ancestors.size();
+            while (depth > 0 && childrenLeft.get(depth - 1) == 0) {
+                ancestors.remove(depth - 1);
+                childrenLeft.remove(depth - 1);
+                depth--;
+            }
+            if (depth > 0) {
+                mParents.put(item, ancestors.get(depth - 1));
+                childrenLeft.set(depth - 1, childrenLeft.get(depth - 1) - 1);
+            } else {
+                mParents.put(item, null);
+            }
+            int childrenCount = item.getChildren() == null ? 0 : item.getChildren().size();
+            if (childrenCount > 0) {
+                ancestors.add(item);
+                childrenLeft.add(childrenCount);
+            }
+        }
+        return mParents;
+    }
+
+    /**
+     * Replace all the items with "items" (all the items, in the order they have when all the
+     * groups are expanded, like the items passed to {@link #addAll(Collection)}), keeping the
+     * groups that are collapsed. The new items are matched to the current ones by their keys:
+     * their stable id if they implement {@link StableIdNode}, otherwise the items themselves
+     * (i.e. equals()).
+     *
+     * The new rows and the changes from the current rows are computed on diffExecutor, then the
+     * rows are replaced on callbackExecutor (which must be the thread that uses the tree) and the
+     * changes are notified to the {@link Listener}. If another tree is submitted in the meantime
+     * only the last one is applied. If the rows are modified in the meantime the changes are
+     * computed again.
+     *
+     * Threading: the new items are read on diffExecutor, i.e. {@link ExpIndNode#getChildren()},
+     * {@link ExpIndNode#isGroup()}, {@link StableIdNode#getStableId()} and equals()/hashCode()
+     * (when the items don't have stable ids) are called on its thread, while the tree can still
+     * be used on callbackExecutor. So the new items must not be modified after they are
+     * submitted, and they must not share their children lists with the items that are shown
+     * (e.g. submit new item objects instead of adding children to the current ones). The
+     * keys of the current rows are computed on diffExecutor too, so their ids (or hashCode())
+     * must not change either. The current items are modified only on callbackExecutor.
+     */
+    public void submitTree(List<? extends T> items, final Executor diffExecutor, final Executor callbackExecutor) {
+        final int generation = mSubmitted.incrementAndGet();
+        final int modCount = mModCount;
+        final List<T> newItems = new ArrayList<T>(items);
+        final List<T> oldRows = new ArrayList<T>(mData);
+        final int[] oldGroups = getGroupSizes(oldRows);
+        final Set<Object> collapsed = new HashSet<Object>();
+        for (T group : mCollapsed)
+            collapsed.add(getKey(group));
+
+        diffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mSubmitted.get() != generation)
+                    return;
+                long[] groups = new long[(newItems.size() + 63) / 64];
+                for (int index = 0; index < newItems.size(); index++) {
+                    if (collapsed.contains(getKey(newItems.get(index))))
+                        groups[index / 64] |= 1L << (index % 64);
+                }
+                final Layout<T> layout = Layout.of(newItems, groups);
+                int[] newGroups = new int[layout.rows.size()];
+                int j = 0;
+                for (T row : layout.rows) {
+                    int[] size = layout.groups.get(row);
+                    if (size != null)
+                        newGroups[j] = size[0];
+                    else
+                        newGroups[j] = row.isGroup() && isUnloaded(row) ? 0 : TreeDiff.NOT_GROUP;
+                    j++;
+                }
+                final TreeDiff diff = TreeDiff.compute(oldRows, oldGroups, layout.rows, newGroups, false);
+                final Set<T> present = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+                present.addAll(newItems);
+
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mSubmitted.get() != generation)
+                            return;
+                        if (mModCount != modCount) {
+                            submitTree(newItems, diffExecutor, callbackExecutor);
+                            return;
+                        }
+                        applyTree(layout, diff, present);
+                    }
+                });
+            }
+        });
+    }
+
+    private void applyTree(Layout<T> layout, TreeDiff diff, Set<T> present) {
+        dropPlaceholdersAndPages();
+        mFilterItems = null;
+        mFilterGroups = null;
+        mParents = null;
+        mIds.keySet().retainAll(present);
+        applyLayout(layout);
+        if (isNotifying())
+            diff.dispatch(mListener);
+    }
+
+    /**
+     * Forget the placeholders and the more rows, before the rows are computed again from
+     * all the items. The children that are being loaded are dropped when they arrive.
+     */
+    private void dropPlaceholdersAndPages() {
+        // the items whose children were being loaded can be expanded again to load them
+        for (T parent : mLoading.keySet()) {
+            if (isUnloaded(parent))
+                parent.setIsGroup(true);
+        }
+        mLoading.clear();
+        mPlaceholders.clear();
+        mPages.clear();
+        mMoreRows.clear();
+    }
+
+    /**
+     * @return The key that identifies item in {@link #submitTree(List, Executor, Executor)}
+     */
+    static Object getKey(ExpIndNode item) {
+        if (item instanceof StableIdNode)
+            return ((StableIdNode) item).getStableId();
+        return item;
+    }
+
+    private void applyLayout(Layout<T> layout) {
+        for (T item : layout.expanded) {
+            item.setIsGroup(false);
+            item.setGroupSize(0);
+        }
+        mCollapsed.clear();
+        mNodes.clear();
+        for (Map.Entry<T, int[]> entry : layout.groups.entrySet()) {
+            T item = entry.getKey();
+            mCollapsed.add(item);
+            item.setIsGroup(true);
+            item.setGroupSize(entry.getValue()[0]);
+        }
+        mData.clear();
+        mData.splice(0, layout.rows);
+        mModCount++;
+    }
+
+    /**
+     * The rows and the groups of a list of items, with the groups of a bitset collapsed.
+     * Computing it doesn't modify the items, so it can be done in background.
+     */
+    private static final class Layout<T extends ExpIndNode> {
+        final FlatList<T> rows = new FlatList<T>();
+        /**
+         * The collapsed groups and their sizes.
+         */
+        final Map<T, int[]> groups = new IdentityHashMap<T, int[]>();
+        /**
+         * The items that are groups but have to be expanded.
+         */
+        final List<T> expanded = new ArrayList<T>();
+
+        /**
+         * All the groups are computed in a single pass over the items: every item is either
+         * visible or counted in the group of its closest collapsed ancestor.
+         * @param items All the items, in the order they have when all the groups are expanded
+         * @param groups The bitset of the indices of items that are groups
+         */
+        static <T extends ExpIndNode> Layout<T> of(Iterable<T> items, long[] groups) {
+            Layout<T> layout = new Layout<T>();
+            List<T> visible = new ArrayList<T>();
+            // the ancestors of the current item that still have children to visit, with the number
+            // of children left and the group where the children are counted
+            List<Ancestor<T>> ancestors = new ArrayList<Ancestor<T>>();
+
+            int index = 0;
+            for (T item : items) {
+                while (!ancestors.isEmpty() && ancestors.get(ancestors.size() - 1).childrenLeft == 0)
+                    ancestors.remove(ancestors.size() - 1);
+
+                T owner = null;
+                if (!ancestors.isEmpty()) {
+                    Ancestor<T> parent = ancestors.get(ancestors.size() - 1);
+                    parent.childrenLeft--;
+                    owner = parent.group;
+                }
+                if (owner == null)
+                    visible.add(item);
+                else
+                    layout.groups.get(owner)[0]++;
+
+                int childrenCount = item.getChildren() == null ? 0 : item.getChildren().size();
+                boolean group = index / 64 < groups.length && (groups[index / 64] & (1L << (index % 64))) != 0;
+                T childrenOwner = owner;
+                if (group && childrenCount > 0) {
+                    childrenOwner = item;
+                    layout.groups.put(item, new int[1]);
+                } else if (item.isGroup() && !isUnloaded(item)) {
+                    layout.expanded.add(item);
+                }
+                if (childrenCount > 0)
+                    ancestors.add(new Ancestor<T>(childrenCount, childrenOwner));
+                index++;
+            }
+
+            layout.rows.addAll(visible);
+            return layout;
+        }
+    }
+
+    private static final class Ancestor<T> {
+        int childrenLeft;
+        /**
+         * The closest collapsed group that contains the children, null if they are visible.
+         */
+        final T group;
+
+        Ancestor(int childrenLeft, T group) {
+            this.childrenLeft = childrenLeft;
+            this.group = group;
+        }
+    }
+}
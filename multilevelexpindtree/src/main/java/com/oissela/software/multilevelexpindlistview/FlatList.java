@@ -0,0 +1,398 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * List of the rows shown by {@link ExpIndTree}.
+ *
+ * It's an implicit treap (a randomized balanced binary tree ordered by position) where every
+ * node knows the size of its subtree, so that accessing, inserting or removing a row at a
+ * certain position costs O(log n) instead of shifting the tail of an array.
+ * Whole ranges of rows can be cut out of the list ({@link #cut(int, int)}) and put back
+ * ({@link #splice(int, FlatList)}) in O(log n) too, which is what expanding and collapsing
+ * a group does.
+ *
+ * An indexed list also maps every element to its node, so that {@link #identityIndexOf(Object)}
+ * walks up from the node to the root in O(log n) instead of scanning the list. The nodes that
+ * are cut out of the list aren't removed from the index (that would cost O(k)), the stale
+ * entries are recognized because their nodes aren't in the tree anymore.
+ */
+final class FlatList<E> extends AbstractList<E> {
+    private static final Random sRandom = new Random();
+
+    private static final class Node<E> {
+        E value;
+        final int priority;
+        int size = 1;
+        Node<E> parent;
+        Node<E> left;
+        Node<E> right;
+
+        Node(E value) {
+            this.value = value;
+            this.priority = sRandom.nextInt();
+        }
+    }
+
+    private Node<E> mRoot;
+
+    /**
+     * Map every element to its node, null if the list isn't indexed.
+     */
+    private final Map<E, Node<E>> mIndex;
+
+    public FlatList() {
+        this(false);
+    }
+
+    /**
+     * @param indexed True to keep the index of the elements used by {@link #identityIndexOf(Object)}.
+     *                Inserting k elements costs O(k + log n) then.
+     */
+    public FlatList(boolean indexed) {
+        mIndex = indexed ? new IdentityHashMap<E, Node<E>>() : null;
+    }
+
+    private FlatList(Node<E> root) {
+        mIndex = null;
+        setRoot(root);
+    }
+
+    @Override
+    public int size() {
+        return size(mRoot);
+    }
+
+    @Override
+    public E get(int index) {
+        return nodeAt(index).value;
+    }
+
+    @Override
+    public E set(int index, E element) {
+        Node<E> node = nodeAt(index);
+        E old = node.value;
+        node.value = element;
+        if (mIndex != null) {
+            if (mIndex.get(old) == node)
+                mIndex.remove(old);
+            mIndex.put(element, node);
+        }
+        return old;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        checkPositionIndex(index);
+        Node<E>[] parts = split(mRoot, index);
+        Node<E> node = new Node<E>(element);
+        if (mIndex != null)
+            mIndex.put(element, node);
+        setRoot(merge(merge(parts[0], node), parts[1]));
+        modCount++;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        return addAll(size(), c);
+    }
+
+    /**
+     * Insert all the elements of c at position index. Costs O(k + log n) where k is the number
+     * of new elements.
+     */
+    @Override
+    public boolean addAll(int index, Collection<? extends E> c) {
+        checkPositionIndex(index);
+        if (c.isEmpty())
+            return false;
+        splice(index, new FlatList<E>(build(c)));
+        return true;
+    }
+
+    @Override
+    public E remove(int index) {
+        checkElementIndex(index);
+        Node<E>[] parts = split(mRoot, index);
+        Node<E>[] rest = split(parts[1], 1);
+        setRoot(merge(parts[0], rest[1]));
+        rest[0].parent = null;
+        if (mIndex != null && mIndex.get(rest[0].value) == rest[0])
+            mIndex.remove(rest[0].value);
+        modCount++;
+        return rest[0].value;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int index = indexOf(o);
+        if (index < 0)
+            return false;
+        remove(index);
+        return true;
+    }
+
+    /**
+     * Iterate over the elements in O(n), instead of looking up every index from the root
+     * like AbstractList does. The iterator doesn't support remove().
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private final List<Node<E>> mPath = new ArrayList<Node<E>>();
+            private final int mExpectedModCount = modCount;
+
+            {
+                pushLeftSpine(mRoot);
+            }
+
+            private void pushLeftSpine(Node<E> node) {
+                while (node != null) {
+                    mPath.add(node);
+                    node = node.left;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !mPath.isEmpty();
+            }
+
+            @Override
+            public E next() {
+                if (modCount != mExpectedModCount)
+                    throw new ConcurrentModificationException();
+                if (mPath.isEmpty())
+                    throw new NoSuchElementException();
+                Node<E> node = mPath.remove(mPath.size() - 1);
+                pushLeftSpine(node.right);
+                return node.value;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return The index of the first element that is o (compared by identity, not with equals()),
+     *         -1 if there is none. Costs O(log n) if the list is indexed, O(n) otherwise.
+     */
+    public int identityIndexOf(Object o) {
+        if (mIndex == null) {
+            int index = 0;
+            for (E element : this) {
+                if (element == o)
+                    return index;
+                index++;
+            }
+            return -1;
+        }
+        Node<E> node = mIndex.get(o);
+        if (node == null)
+            return -1;
+        int index = size(node.left);
+        Node<E> top = node;
+        while (top.parent != null) {
+            if (top == top.parent.right)
+                index += size(top.parent.left) + 1;
+            top = top.parent;
+        }
+        if (top != mRoot) {
+            // node was cut out of the list
+            mIndex.remove(o);
+            return -1;
+        }
+        return index;
+    }
+
+    @Override
+    public void clear() {
+        mRoot = null;
+        if (mIndex != null)
+            mIndex.clear();
+        modCount++;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        cut(fromIndex, toIndex);
+    }
+
+    /**
+     * Remove the elements in [fromIndex, toIndex) from this list and return them. Costs O(log n).
+     * @return A new list that contains the removed elements
+     */
+    public FlatList<E> cut(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex)
+            throw new IndexOutOfBoundsException("from " + fromIndex + " to " + toIndex + ", size " + size());
+        Node<E>[] parts = split(mRoot, fromIndex);
+        Node<E>[] rest = split(parts[1], toIndex - fromIndex);
+        setRoot(merge(parts[0], rest[1]));
+        modCount++;
+        return new FlatList<E>(rest[0]);
+    }
+
+    /**
+     * Move all the elements of other in this list at position index. After this call other is empty.
+     * Costs O(log n), O(k + log n) if this list is indexed.
+     */
+    public void splice(int index, FlatList<E> other) {
+        checkPositionIndex(index);
+        if (other == this)
+            throw new IllegalArgumentException("can't splice a list into itself");
+        if (mIndex != null)
+            index(other.mRoot);
+        Node<E>[] parts = split(mRoot, index);
+        setRoot(merge(merge(parts[0], other.mRoot), parts[1]));
+        other.mRoot = null;
+        if (other.mIndex != null)
+            other.mIndex.clear();
+        other.modCount++;
+        modCount++;
+    }
+
+    private void setRoot(Node<E> root) {
+        mRoot = root;
+        if (root != null)
+            root.parent = null;
+    }
+
+    /**
+     * Add the nodes of the tree rooted in node to the index.
+     */
+    private void index(Node<E> node) {
+        if (node == null)
+            return;
+        List<Node<E>> stack = new ArrayList<Node<E>>();
+        stack.add(node);
+        while (!stack.isEmpty()) {
+            Node<E> top = stack.remove(stack.size() - 1);
+            mIndex.put(top.value, top);
+            if (top.left != null)
+                stack.add(top.left);
+            if (top.right != null)
+                stack.add(top.right);
+        }
+    }
+
+    private Node<E> nodeAt(int index) {
+        checkElementIndex(index);
+        Node<E> node = mRoot;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    private void checkElementIndex(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+    }
+
+    private void checkPositionIndex(int index) {
+        if (index < 0 || index > size())
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+    }
+
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * Recompute the size of node and make it the parent of its children.
+     */
+    private static <E> void update(Node<E> node) {
+        node.size = 1 + size(node.left) + size(node.right);
+        if (node.left != null)
+            node.left.parent = node;
+        if (node.right != null)
+            node.right.parent = node;
+    }
+
+    /**
+     * Split the tree rooted in node in two trees: the first one contains the first k elements
+     * and the second one the remaining elements.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <E> Node<E>[] split(Node<E> node, int k) {
+        Node<E>[] result = new Node[2];
+        if (node == null)
+            return result;
+        int leftSize = size(node.left);
+        if (k <= leftSize) {
+            Node<E>[] parts = split(node.left, k);
+            node.left = parts[1];
+            update(node);
+            result[0] = parts[0];
+            result[1] = node;
+        } else {
+            Node<E>[] parts = split(node.right, k - leftSize - 1);
+            node.right = parts[0];
+            update(node);
+            result[0] = node;
+            result[1] = parts[1];
+        }
+        return result;
+    }
+
+    /**
+     * Concatenate two trees. All the elements of a come before the elements of b.
+     */
+    private static <E> Node<E> merge(Node<E> a, Node<E> b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+
+    /**
+     * Build a tree with the elements of c in O(k), pushing every new node down the right spine
+     * until the heap order on the priorities is restored.
+     */
+    private static <E> Node<E> build(Collection<? extends E> c) {
+        List<Node<E>> spine = new ArrayList<Node<E>>();
+        for (E element : c) {
+            Node<E> node = new Node<E>(element);
+            Node<E> last = null;
+            while (!spine.isEmpty() && spine.get(spine.size() - 1).priority < node.priority) {
+                last = spine.remove(spine.size() - 1);
+                update(last);
+            }
+            node.left = last;
+            if (!spine.isEmpty())
+                spine.get(spine.size() - 1).right = node;
+            spine.add(node);
+        }
+        for (int i = spine.size() - 1; i >= 0; i--)
+            update(spine.get(i));
+        return spine.isEmpty() ? null : spine.get(0);
+    }
+}
@@ -0,0 +1,23 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import java.util.List;
+
+/**
+ * Optional interface for items whose children are loaded only when the item is expanded
+ * (e.g. the replies of a comment that are read from disk). An item that implements it and
+ * hasn't loaded its children yet must be a group: when it's expanded {@link ExpIndTree} shows
+ * a placeholder row below it and loads the children with its {@link ExpIndTree.ChildrenLoader}.
+ */
+public interface LazyNode extends ExpIndNode {
+    /**
+     * @return True if {@link #getChildren()} already returns all the children of this item
+     */
+    boolean areChildrenLoaded();
+
+    /**
+     * Called on the main thread when the children of this item have been loaded. After this
+     * call {@link #getChildren()} must return them and {@link #areChildrenLoaded()} must return true.
+     * @param children The children returned by {@link ExpIndTree.ChildrenLoader#loadChildren(ExpIndNode)}
+     */
+    void setLoadedChildren(List<? extends ExpIndNode> children);
+}
@@ -0,0 +1,15 @@
+package com.oissela.software.multilevelexpindlistview;
+
+/**
+ * Optional interface for items that already have a unique id (e.g. the id of a comment
+ * in a database). If an item doesn't implement it {@link ExpIndTree} assigns it an id the first
+ * time the id is requested. Either way an item keeps its id when the items above it are
+ * expanded/collapsed.
+ */
+public interface StableIdNode extends ExpIndNode {
+    /**
+     * @return The id of this item. It must be >= 0, negative ids are reserved for the ids
+     *         assigned by the tree.
+     */
+    long getStableId();
+}
@@ -0,0 +1,239 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes that turn the rows shown before {@link ExpIndTree#submitTree} into the rows shown
+ * after it, as a sequence of removals, moves, insertions and changes that can be notified to a
+ * {@link ExpIndTree.Listener} in order. The rows are matched by their keys (see
+ * {@link ExpIndTree#getKey(ExpIndNode)}), which must be unique, or by identity when the old and
+ * the new rows are the same instances (e.g. in a batch, see {@link ExpIndTree#beginBatch()}).
+ *
+ * The rows that are both in the old and in the new list are moved as little as possible: the
+ * rows in the longest increasing subsequence of their old positions stay where they are and only
+ * the others are moved.
+ */
+final class TreeDiff {
+    /**
+     * Every move costs O(n) to compute, so if more rows than this are moved all the rows are
+     * notified as removed and inserted again.
+     */
+    private static final int MAX_MOVES = 256;
+
+    /**
+     * The group size of the rows that aren't groups.
+     */
+    static final int NOT_GROUP = -1;
+
+    private static final int REMOVE = 0;
+    private static final int MOVE = 1;
+    private static final int INSERT = 2;
+    private static final int CHANGE = 3;
+
+    /**
+     * The operations, 3 ints each: the type and the 2 arguments of the listener's method.
+     */
+    private int[] mOps = new int[3 * 16];
+    private int mSize;
+
+    private TreeDiff() {
+    }
+
+    /**
+     * A common row is changed if it's a different item (i.e. with the same key), if it became a
+     * group or stopped being one, or if the size of its group changed.
+     * @param oldRows The rows shown before
+     * @param oldGroups The group size of every old row, {@link #NOT_GROUP} if it wasn't a group
+     * @param newRows The rows shown after
+     * @param newGroups The group size of every new row, {@link #NOT_GROUP} if it isn't a group
+     * @param byIdentity True to match the rows by identity instead of by their keys
+     */
+    static TreeDiff compute(List<? extends ExpIndNode> oldRows, int[] oldGroups,
+                            List<? extends ExpIndNode> newRows, int[] newGroups, boolean byIdentity) {
+        TreeDiff diff = new TreeDiff();
+        int oldSize = oldRows.size();
+        int newSize = newRows.size();
+
+        Map<Object, Integer> oldPositions = byIdentity ?
+                new IdentityHashMap<Object, Integer>(oldSize * 2) :
+                new HashMap<Object, Integer>(oldSize * 2);
+        for (int i = 0; i < oldSize; i++) {
+            if (oldPositions.put(getKey(oldRows.get(i), byIdentity), i) != null)
+                return diff.replaceAll(oldSize, newSize);
+        }
+        // the old position of every new row, -1 if it's a new one
+        int[] newToOld = new int[newSize];
+        boolean[] kept = new boolean[oldSize];
+        int common = 0;
+        for (int j = 0; j < newSize; j++) {
+            Integer i = oldPositions.get(getKey(newRows.get(j), byIdentity));
+            if (i != null && kept[i])
+                return diff.replaceAll(oldSize, newSize);
+            newToOld[j] = i == null ? -1 : i;
+            if (i != null) {
+                kept[i] = true;
+                common++;
+            }
+        }
+
+        // the old positions of the common rows in the new order
+        int[] sequence = new int[common];
+        for (int j = 0, k = 0; j < newSize; j++) {
+            if (newToOld[j] >= 0)
+                sequence[k++] = newToOld[j];
+        }
+        boolean[] stay = longestIncreasingSubsequence(sequence);
+        int moves = 0;
+        for (boolean s : stay) {
+            if (!s)
+                moves++;
+        }
+        if (moves > MAX_MOVES)
+            return diff.replaceAll(oldSize, newSize);
+
+        // removals from the bottom, so that the positions of the rows above don't change
+        for (int i = oldSize - 1; i >= 0; ) {
+            if (kept[i]) {
+                i--;
+                continue;
+            }
+            int end = i;
+            while (i >= 0 && !kept[i])
+                i--;
+            diff.add(REMOVE, i + 1, end - i);
+        }
+
+        // moves: every row that doesn't stay is moved right after the row that precedes it in the
+        // new order, so the rows already visited are always in the new order
+        if (moves > 0) {
+            List<Integer> current = new ArrayList<Integer>(common);
+            for (int i = 0; i < oldSize; i++) {
+                if (kept[i])
+                    current.add(i);
+            }
+            for (int k = 0; k < common; k++) {
+                if (stay[k])
+                    continue;
+                int from = current.indexOf(sequence[k]);
+                current.remove(from);
+                int to = k == 0 ? 0 : current.indexOf(sequence[k - 1]) + 1;
+                current.add(to, sequence[k]);
+                if (from != to)
+                    diff.add(MOVE, from, to);
+            }
+        }
+
+        // insertions from the top, every row is inserted at its final position
+        for (int j = 0; j < newSize; ) {
+            if (newToOld[j] >= 0) {
+                j++;
+                continue;
+            }
+            int start = j;
+            while (j < newSize && newToOld[j] < 0)
+                j++;
+            diff.add(INSERT, start, j - start);
+        }
+
+        // the common rows that have to be bound again
+        for (int j = 0; j < newSize; ) {
+            if (!isChanged(oldRows, oldGroups, newRows, newGroups, newToOld, j)) {
+                j++;
+                continue;
+            }
+            int start = j;
+            while (j < newSize && isChanged(oldRows, oldGroups, newRows, newGroups, newToOld, j))
+                j++;
+            diff.add(CHANGE, start, j - start);
+        }
+        return diff;
+    }
+
+    private static Object getKey(ExpIndNode row, boolean byIdentity) {
+        return byIdentity ? row : ExpIndTree.getKey(row);
+    }
+
+    private static boolean isChanged(List<? extends ExpIndNode> oldRows, int[] oldGroups,
+                                     List<? extends ExpIndNode> newRows, int[] newGroups,
+                                     int[] newToOld, int j) {
+        int i = newToOld[j];
+        return i >= 0 && (oldRows.get(i) != newRows.get(j) || oldGroups[i] != newGroups[j]);
+    }
+
+    /**
+     * @return Whether every element of sequence belongs to a longest increasing subsequence.
+     *         Costs O(n log n).
+     */
+    private static boolean[] longestIncreasingSubsequence(int[] sequence) {
+        int n = sequence.length;
+        // tails[l] = index of the smallest tail of an increasing subsequence of length l + 1
+        int[] tails = new int[n];
+        int[] previous = new int[n];
+        int length = 0;
+        for (int k = 0; k < n; k++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (sequence[tails[middle]] < sequence[k])
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            previous[k] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = k;
+            if (low == length)
+                length++;
+        }
+        boolean[] inSubsequence = new boolean[n];
+        for (int k = length > 0 ? tails[length - 1] : -1; k >= 0; k = previous[k])
+            inSubsequence[k] = true;
+        return inSubsequence;
+    }
+
+    private TreeDiff replaceAll(int oldSize, int newSize) {
+        mSize = 0;
+        if (oldSize > 0)
+            add(REMOVE, 0, oldSize);
+        if (newSize > 0)
+            add(INSERT, 0, newSize);
+        return this;
+    }
+
+    private void add(int type, int first, int second) {
+        if (mSize + 3 > mOps.length)
+            mOps = Arrays.copyOf(mOps, mOps.length * 2);
+        mOps[mSize++] = type;
+        mOps[mSize++] = first;
+        mOps[mSize++] = second;
+    }
+
+    /**
+     * Notify the changes to listener, in the order they have to be applied.
+     */
+    void dispatch(ExpIndTree.Listener listener) {
+        for (int k = 0; k < mSize; k += 3) {
+            int first = mOps[k + 1];
+            int second = mOps[k + 2];
+            switch (mOps[k]) {
+                case REMOVE:
+                    listener.onItemRangeRemoved(first, second);
+                    break;
+                case MOVE:
+                    listener.onItemMoved(first, second);
+                    break;
+                case INSERT:
+                    listener.onItemRangeInserted(first, second);
+                    break;
+                case CHANGE:
+                    listener.onItemRangeChanged(first, second);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class ExpIndTreeTest {
+    /**
+     * @return The rows of tree, with the groups marked by "*"
+     */
+    private static String rows(ExpIndTree<TestNode> tree) {
+        List<TestNode> rows = new ArrayList<TestNode>();
+        for (int i = 0; i < tree.size(); i++)
+            rows.add(tree.get(i));
+        return rows.toString();
+    }
+
+    /**
+     * @return The top level items of a random tree, whose items are appended to all in depth
+     *         first order
+     */
+    private static List<TestNode> randomTree(Random random, List<TestNode> all) {
+        List<TestNode> top = new ArrayList<TestNode>();
+        for (int i = 0; i < 4; i++) {
+            TestNode item = new TestNode(null, "" + i);
+            top.add(item);
+            all.add(item);
+            addRandomChildren(item, random, all);
+        }
+        return top;
+    }
+
+    private static void addRandomChildren(TestNode parent, Random random, List<TestNode> all) {
+        int count = parent.getIndentation() >= 5 ? 0 : random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+            TestNode child = new TestNode(parent, "" + i);
+            all.add(child);
+            addRandomChildren(child, random, all);
+        }
+    }
+
+    /**
+     * Append to rows the rows of item computed from scratch: every item that isn't a group is
+     * followed by the rows of its children.
+     */
+    private static void flatten(TestNode item, List<TestNode> rows) {
+        rows.add(item);
+        if (!item.isGroup()) {
+            for (TestNode child : item.getChildren())
+                flatten(child, rows);
+        }
+    }
+
+    /**
+     * @return The number of rows shown below item when it's expanded
+     */
+    private static int countDescendants(TestNode item) {
+        int count = 0;
+        for (TestNode child : item.getChildren())
+            count += 1 + (child.isGroup() ? 0 : countDescendants(child));
+        return count;
+    }
+
+    /**
+     * Check that the rows of tree are the flattened items and that the groups have the right sizes.
+     */
+    private static void assertRows(List<TestNode> top, ExpIndTree<TestNode> tree) {
+        List<TestNode> expected = new ArrayList<TestNode>();
+        for (TestNode item : top)
+            flatten(item, expected);
+        assertEquals(expected.size(), tree.size());
+        for (int i = 0; i < expected.size(); i++) {
+            TestNode row = expected.get(i);
+            assertSame(row, tree.get(i));
+            if (row.isGroup())
+                assertEquals(row.toString(), countDescendants(row), row.getGroupSize());
+        }
+    }
+
+    /**
+     * Random expansions and collapses, saves and restores of the groups, relayouts and filters
+     * have the same rows as flattening the items from scratch.
+     */
+    @Test
+    public void randomOperationsMatchFlattening() {
+        Random random = new Random(4);
+        List<TestNode> all = new ArrayList<TestNode>();
+        List<TestNode> top = randomTree(random, all);
+        ExpIndTree<TestNode> tree = new ExpIndTree<TestNode>();
+        tree.addAll(all);
+
+        for (int step = 0; step < 5000; step++) {
+            int operation = random.nextInt(100);
+            if (operation < 85) {
+                int position = random.nextInt(tree.size());
+                if (tree.get(position).isGroup())
+                    tree.expandGroup(position);
+                else
+                    tree.collapseGroup(position);
+            } else if (operation < 90) {
+                // restore the saved groups in a new tree and go on with it
+                long[] groups = tree.saveGroupsState();
+                List<TestNode> rows = new ArrayList<TestNode>();
+                for (int i = 0; i < tree.size(); i++)
+                    rows.add(tree.get(i));
+                tree = new ExpIndTree<TestNode>();
+                tree.addAll(all);
+                tree.restoreGroupsState(groups);
+                assertEquals(rows.size(), tree.size());
+                for (int i = 0; i < rows.size(); i++)
+                    assertSame(rows.get(i), tree.get(i));
+            } else if (operation < 93) {
+                tree.collapseToDepth(random.nextInt(4));
+            } else if (operation < 95) {
+                if (random.nextBoolean())
+                    tree.collapseAll();
+                else
+                    tree.expandAll();
+            } else {
+                assertFilter(all, tree, random);
+            }
+            assertRows(top, tree);
+        }
+    }
+
+    /**
+     * Filter the tree with some random matches, check the rows and clear the filter.
+     */
+    private static void assertFilter(List<TestNode> all, ExpIndTree<TestNode> tree, Random random) {
+        List<TestNode> rows = new ArrayList<TestNode>();
+        for (int i = 0; i < tree.size(); i++)
+            rows.add(tree.get(i));
+        Set<TestNode> matches = Collections.newSetFromMap(new IdentityHashMap<TestNode, Boolean>());
+        for (TestNode item : all) {
+            if (random.nextInt(20) == 0)
+                matches.add(item);
+        }
+        // the matches and their ancestors, i.e. the items whose path is a prefix of a match's
+        List<String> expected = new ArrayList<String>();
+        for (TestNode item : all) {
+            for (TestNode match : matches) {
+                if (match.getName().equals(item.getName()) || match.getName().startsWith(item.getName() + ".")) {
+                    expected.add(item.getName());
+                    break;
+                }
+            }
+        }
+
+        tree.setFilter(matches);
+        List<String> filtered = new ArrayList<String>();
+        for (int i = 0; i < tree.size(); i++) {
+            assertFalse(tree.get(i).isGroup());
+            filtered.add(tree.get(i).toString());
+        }
+        assertEquals(expected, filtered);
+        if (tree.size() > 0)
+            assertEquals(0, tree.collapseGroup(0));
+
+        tree.clearFilter();
+        assertEquals(rows.size(), tree.size());
+        for (int i = 0; i < rows.size(); i++)
+            assertSame(rows.get(i), tree.get(i));
+    }
+
+    @Test
+    public void collapseAfterExpandingGroupsCollapsedByRestore() {
+        TestNode a = new TestNode(null, "A");
+        TestNode x = new TestNode(a, "X");
+        TestNode c = new TestNode(x, "C");
+        TestNode d = new TestNode(c, "D");
+        ExpIndTree<TestNode> tree = new ExpIndTree<TestNode>();
+        tree.addAll(Arrays.asList(a, x, c, d));
+        // collapse X and C
+        tree.restoreGroupsState(new long[]{0x6});
+        assertEquals("[A, A.X*]", rows(tree));
+
+        assertEquals(1, tree.collapseGroup(0));
+        assertEquals(1, tree.expandGroup(0));
+        assertEquals(1, tree.expandGroup(1));
+        assertEquals(1, tree.expandGroup(2));
+        assertEquals("[A, A.X, A.X.C, A.X.C.D]", rows(tree));
+        assertEquals(3, tree.collapseGroup(0));
+        assertEquals("[A*]", rows(tree));
+        assertEquals(3, tree.expandGroup(0));
+        assertEquals("[A, A.X, A.X.C, A.X.C.D]", rows(tree));
+    }
+
+    @Test
+    public void collapseAfterInsertingAndRemovingRows() {
+        TestNode a = new TestNode(null, "A");
+        TestNode b = new TestNode(a, "B");
+        TestNode c = new TestNode(b, "C");
+        ExpIndTree<TestNode> tree = new ExpIndTree<TestNode>();
+        tree.addAll(Arrays.asList(a, b, c));
+        // the counts of A and B are known
+        assertEquals(2, tree.collapseGroup(0));
+        assertEquals(2, tree.expandGroup(0));
+
+        TestNode d = new TestNode(b, "D");
+        tree.insert(d, 3);
+        assertEquals("[A, A.B, A.B.C, A.B.D]", rows(tree));
+        assertEquals(2, tree.collapseGroup(1));
+        assertEquals(2, tree.expandGroup(1));
+
+        b.mChildren.remove(c);
+        tree.remove(c);
+        assertEquals(2, tree.collapseGroup(0));
+        assertEquals("[A*]", rows(tree));
+        assertEquals(2, tree.expandGroup(0));
+        assertEquals("[A, A.B, A.B.D]", rows(tree));
+    }
+
+    /**
+     * Loads two children for every item, when {@link #run()} is called.
+     */
+    private static final class TestLoader implements ExpIndTree.ChildrenLoader<TestNode>, Executor {
+        final List<Runnable> mPending = new ArrayList<Runnable>();
+
+        @Override
+        public TestNode createPlaceholder(TestNode parent) {
+            return new TestNode(null, "loading");
+        }
+
+        @Override
+        public List<? extends TestNode> loadChildren(TestNode parent) {
+            // the children are added to parent by setLoadedChildren()
+            TestNode loaded = new TestNode(null, parent.getName());
+            new TestNode(loaded, "a");
+            new TestNode(loaded, "b");
+            return loaded.getChildren();
+        }
+
+        @Override
+        public void onLoadFailed(TestNode parent, Exception e) {
+            fail(e.toString());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mPending.add(command);
+        }
+
+        void run() {
+            while (!mPending.isEmpty())
+                mPending.remove(0).run();
+        }
+    }
+
+    @Test
+    public void childrenLoadedInCollapsedGroup() {
+        TestNode a = new TestNode(null, "A");
+        TestNode b = new TestLazyNode(a, "B");
+        ExpIndTree<TestNode> tree = new ExpIndTree<TestNode>();
+        TestLoader loader = new TestLoader();
+        tree.setChildrenLoader(loader, loader, loader);
+        tree.addAll(Arrays.asList(a, b));
+
+        assertEquals(1, tree.expandGroup(1));
+        assertEquals("[A, A.B, loading]", rows(tree));
+        // the placeholder is hidden while loading, the children replace it in the group of A
+        assertEquals(2, tree.collapseGroup(0));
+        loader.run();
+        assertEquals("[A*]", rows(tree));
+        assertEquals(3, a.getGroupSize());
+        assertEquals(3, tree.expandGroup(0));
+        assertEquals("[A, A.B, A.B.a, A.B.b]", rows(tree));
+        assertEquals(3, tree.collapseGroup(0));
+    }
+
+    @Test
+    public void childrenLoadedInCollapsedLazyNode() {
+        TestNode a = new TestNode(null, "A");
+        TestNode b = new TestLazyNode(a, "B");
+        TestNode c = new TestNode(a, "C");
+        ExpIndTree<TestNode> tree = new ExpIndTree<TestNode>();
+        TestLoader loader = new TestLoader();
+        tree.setChildrenLoader(loader, loader, loader);
+        tree.addAll(Arrays.asList(a, b, c));
+
+        assertEquals(1, tree.expandGroup(1));
+        assertEquals(1, tree.collapseGroup(1));
+        loader.run();
+        assertEquals("[A, A.B*, A.C]", rows(tree));
+        assertEquals(2, b.getGroupSize());
+        assertEquals(2, tree.collapseGroup(0));
+        assertEquals("[A*]", rows(tree));
+        assertEquals(2, tree.expandGroup(0));
+        assertEquals(2, tree.expandGroup(1));
+        assertEquals("[A, A.B, A.B.a, A.B.b, A.C]", rows(tree));
+        assertEquals(4, tree.collapseGroup(0));
+    }
+
+    @Test
+    public void childrenLoadedInPageNotShown() {
+        TestNode a = new TestNode(null, "A");
+        for (int i = 0; i < 3; i++)
+            new TestNode(a, "" + i);
+        new TestLazyNode(a, "3");
+        ExpIndTree<TestNode> tree = new ExpIndTree<TestNode>();
+        TestLoader loader = new TestLoader();
+        tree.setChildrenLoader(loader, loader, loader);
+        tree.setPaging(2, new ExpIndTree.MoreRowFactory<TestNode>() {
+            @Override
+            public TestNode createMoreRow(TestNode parent) {
+                return new TestNode(null, "more");
+            }
+        });
+        tree.add(a);
+        a.setIsGroup(true);
+
+        assertEquals(3, tree.expandGroup(0));
+        assertEquals("[A, A.0, A.1, more*]", rows(tree));
+        assertEquals(0, tree.expandGroup(3));
+        assertEquals("[A, A.0, A.1, A.2, A.3*]", rows(tree));
+        assertEquals(1, tree.expandGroup(4));
+        assertEquals(5, tree.collapseGroup(0));
+        // the first page again, A.3 and its placeholder are after the more row
+        assertEquals(3, tree.expandGroup(0));
+        // the count of A is known
+        assertEquals(3, tree.collapseGroup(0));
+        assertEquals(3, tree.expandGroup(0));
+        loader.run();
+        assertEquals("[A, A.0, A.1, more*]", rows(tree));
+        assertEquals(3, tree.collapseGroup(0));
+        assertEquals(3, tree.expandGroup(0));
+        assertEquals(0, tree.expandGroup(3));
+        assertEquals("[A, A.0, A.1, A.2, A.3, A.3.a, A.3.b]", rows(tree));
+        assertEquals(6, tree.collapseGroup(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void expandLazyNodeWithoutLoader() {
+        ExpIndTree<TestNode> tree = new ExpIndTree<TestNode>();
+        tree.add(new TestLazyNode(null, "A"));
+        tree.expandGroup(0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addWhileFiltered() {
+        ExpIndTree<TestNode> tree = new ExpIndTree<TestNode>();
+        TestNode a = new TestNode(null, "A");
+        tree.add(a);
+        tree.setFilter(Collections.singletonList(a));
+        tree.add(new TestNode(null, "B"));
+    }
+}
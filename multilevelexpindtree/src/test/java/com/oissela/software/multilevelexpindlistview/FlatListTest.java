@@ -0,0 +1,170 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FlatListTest {
+    private static List<Integer> range(int from, int to) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (int i = from; i < to; i++)
+            list.add(i);
+        return list;
+    }
+
+    @Test
+    public void addAllKeepsTheOrder() {
+        FlatList<Integer> list = new FlatList<Integer>();
+        list.addAll(range(0, 1000));
+        assertEquals(range(0, 1000), list);
+        list.addAll(range(1000, 1010));
+        assertEquals(range(0, 1010), list);
+    }
+
+    @Test
+    public void cutAndSpliceMoveRanges() {
+        FlatList<Integer> list = new FlatList<Integer>();
+        list.addAll(range(0, 10));
+        FlatList<Integer> cut = list.cut(2, 5);
+        assertEquals(Arrays.asList(2, 3, 4), cut);
+        assertEquals(Arrays.asList(0, 1, 5, 6, 7, 8, 9), list);
+
+        list.splice(7, cut);
+        assertEquals(0, cut.size());
+        assertEquals(Arrays.asList(0, 1, 5, 6, 7, 8, 9, 2, 3, 4), list);
+
+        FlatList<Integer> all = list.cut(0, list.size());
+        assertEquals(0, list.size());
+        list.splice(0, all);
+        assertEquals(10, list.size());
+        assertEquals(0, list.cut(4, 4).size());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void cutOutOfBounds() {
+        FlatList<Integer> list = new FlatList<Integer>();
+        list.addAll(range(0, 3));
+        list.cut(2, 4);
+    }
+
+    /**
+     * Random insertions, removals, cuts and splices (i.e. splits and merges of the treap) have the
+     * same results as on an ArrayList.
+     */
+    @Test
+    public void randomOperationsMatchArrayList() {
+        Random random = new Random(1);
+        FlatList<Integer> list = new FlatList<Integer>();
+        List<Integer> expected = new ArrayList<Integer>();
+        int next = 0;
+        for (int step = 0; step < 5000; step++) {
+            int size = expected.size();
+            switch (random.nextInt(5)) {
+                case 0: {
+                    int index = random.nextInt(size + 1);
+                    list.add(index, next);
+                    expected.add(index, next);
+                    next++;
+                    break;
+                }
+                case 1: {
+                    if (size == 0)
+                        break;
+                    int index = random.nextInt(size);
+                    assertEquals(expected.remove(index), list.remove(index));
+                    break;
+                }
+                case 2: {
+                    int from = random.nextInt(size + 1);
+                    int to = from + random.nextInt(size - from + 1);
+                    FlatList<Integer> cut = list.cut(from, to);
+                    List<Integer> expectedCut = new ArrayList<Integer>(expected.subList(from, to));
+                    expected.subList(from, to).clear();
+                    assertEquals(expectedCut, cut);
+                    int index = random.nextInt(expected.size() + 1);
+                    list.splice(index, cut);
+                    expected.addAll(index, expectedCut);
+                    break;
+                }
+                case 3: {
+                    int index = random.nextInt(size + 1);
+                    List<Integer> added = range(next, next + random.nextInt(20));
+                    next += added.size();
+                    FlatList<Integer> other = new FlatList<Integer>();
+                    other.addAll(added);
+                    list.splice(index, other);
+                    expected.addAll(index, added);
+                    break;
+                }
+                default: {
+                    if (size == 0)
+                        break;
+                    int index = random.nextInt(size);
+                    assertEquals(expected.get(index), list.get(index));
+                    break;
+                }
+            }
+            assertEquals(expected.size(), list.size());
+        }
+        assertEquals(expected, list);
+    }
+
+    @Test
+    public void identityIndexFollowsTheElements() {
+        Random random = new Random(2);
+        FlatList<Object> list = new FlatList<Object>(true);
+        List<Object> expected = new ArrayList<Object>();
+        for (int i = 0; i < 200; i++)
+            expected.add(new Object());
+        list.addAll(expected);
+
+        List<Object> cutOut = new ArrayList<Object>();
+        for (int step = 0; step < 500; step++) {
+            int size = expected.size();
+            int from = random.nextInt(size + 1);
+            int to = from + random.nextInt(Math.min(10, size - from) + 1);
+            FlatList<Object> cut = list.cut(from, to);
+            List<Object> expectedCut = new ArrayList<Object>(expected.subList(from, to));
+            expected.subList(from, to).clear();
+            if (random.nextBoolean()) {
+                // the elements are moved somewhere else
+                int index = random.nextInt(expected.size() + 1);
+                list.splice(index, cut);
+                expected.addAll(index, expectedCut);
+            } else {
+                cutOut.addAll(expectedCut);
+                // a new element that isn't in the index yet
+                Object added = new Object();
+                int index = random.nextInt(expected.size() + 1);
+                list.add(index, added);
+                expected.add(index, added);
+            }
+        }
+        assertEquals(expected, list);
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(i, list.identityIndexOf(expected.get(i)));
+        for (Object element : cutOut)
+            assertEquals(-1, list.identityIndexOf(element));
+        assertEquals(-1, list.identityIndexOf(new Object()));
+    }
+
+    @Test
+    public void identityIndexComparesByIdentity() {
+        FlatList<String> list = new FlatList<String>(true);
+        String first = new String("a");
+        String second = new String("a");
+        list.add(first);
+        list.add(second);
+        assertEquals(0, list.identityIndexOf(first));
+        assertEquals(1, list.identityIndexOf(second));
+        assertEquals(-1, list.identityIndexOf("a"));
+        list.remove(0);
+        assertEquals(-1, list.identityIndexOf(first));
+        assertEquals(0, list.identityIndexOf(second));
+    }
+}
@@ -0,0 +1,27 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import java.util.List;
+
+/**
+ * {@link TestNode} whose children are loaded when it's expanded.
+ */
+class TestLazyNode extends TestNode implements LazyNode {
+    private boolean mLoaded;
+
+    TestLazyNode(TestNode parent, String name) {
+        super(parent, name);
+        setIsGroup(true);
+    }
+
+    @Override
+    public boolean areChildrenLoaded() {
+        return mLoaded;
+    }
+
+    @Override
+    public void setLoadedChildren(List<? extends ExpIndNode> children) {
+        for (ExpIndNode child : children)
+            mChildren.add((TestNode) child);
+        mLoaded = true;
+    }
+}
@@ -0,0 +1,65 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Item of the trees used by the tests. Its name is its path from the top level item
+ * (e.g. "A.X.C").
+ */
+class TestNode implements ExpIndNode {
+    final List<TestNode> mChildren = new ArrayList<TestNode>();
+    private final String mName;
+    private final int mIndentation;
+    private boolean mIsGroup;
+    private int mGroupSize;
+
+    TestNode(TestNode parent, String name) {
+        if (parent == null) {
+            mName = name;
+            mIndentation = 0;
+        } else {
+            mName = parent.mName + "." + name;
+            mIndentation = parent.mIndentation + 1;
+            parent.mChildren.add(this);
+        }
+    }
+
+    @Override
+    public List<TestNode> getChildren() {
+        return mChildren;
+    }
+
+    @Override
+    public boolean isGroup() {
+        return mIsGroup;
+    }
+
+    @Override
+    public void setIsGroup(boolean value) {
+        mIsGroup = value;
+    }
+
+    @Override
+    public void setGroupSize(int groupSize) {
+        mGroupSize = groupSize;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    int getGroupSize() {
+        return mGroupSize;
+    }
+
+    @Override
+    public int getIndentation() {
+        return mIndentation;
+    }
+
+    @Override
+    public String toString() {
+        return mIsGroup ? mName + "*" : mName;
+    }
+}
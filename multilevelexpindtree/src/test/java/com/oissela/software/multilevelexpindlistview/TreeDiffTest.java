@@ -0,0 +1,195 @@
+package com.oissela.software.multilevelexpindlistview;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TreeDiffTest {
+    /**
+     * A list of rows that applies the changes notified to a listener, like an adapter does. The
+     * inserted rows are null and the changed rows are marked.
+     */
+    private static final class SimulatedList implements ExpIndTree.Listener {
+        final List<TestNode> rows;
+        final List<Boolean> changed = new ArrayList<Boolean>();
+
+        SimulatedList(List<TestNode> rows) {
+            this.rows = new ArrayList<TestNode>(rows);
+            changed.addAll(Collections.nCopies(rows.size(), false));
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            for (int i = positionStart; i < positionStart + itemCount; i++)
+                changed.set(i, true);
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            rows.addAll(positionStart, Collections.<TestNode>nCopies(itemCount, null));
+            changed.addAll(positionStart, Collections.nCopies(itemCount, false));
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            rows.subList(positionStart, positionStart + itemCount).clear();
+            changed.subList(positionStart, positionStart + itemCount).clear();
+        }
+
+        @Override
+        public void onItemMoved(int fromPosition, int toPosition) {
+            rows.add(toPosition, rows.remove(fromPosition));
+            changed.add(toPosition, changed.remove(fromPosition));
+        }
+    }
+
+    private static int[] groups(List<TestNode> rows) {
+        int[] groups = new int[rows.size()];
+        for (int i = 0; i < groups.length; i++)
+            groups[i] = rows.get(i).isGroup() ? rows.get(i).getGroupSize() : TreeDiff.NOT_GROUP;
+        return groups;
+    }
+
+    /**
+     * Apply the diff from oldRows to newRows to a simulated list and check that it ends up with
+     * the new rows: every kept row is in its new position and the rows whose group changed
+     * (i.e. they became groups, they stopped being groups or their group size changed) are changed.
+     * @return The simulated list
+     */
+    private static SimulatedList apply(List<TestNode> oldRows, int[] oldGroups,
+                                       List<TestNode> newRows, int[] newGroups) {
+        return apply(oldRows, oldGroups, newRows, newGroups, false);
+    }
+
+    private static SimulatedList apply(List<TestNode> oldRows, int[] oldGroups,
+                                       List<TestNode> newRows, int[] newGroups, boolean byIdentity) {
+        SimulatedList list = new SimulatedList(oldRows);
+        TreeDiff.compute(oldRows, oldGroups, newRows, newGroups, byIdentity).dispatch(list);
+        assertEquals(newRows.size(), list.rows.size());
+        for (int j = 0; j < newRows.size(); j++) {
+            TestNode row = list.rows.get(j);
+            if (row == null)
+                continue;
+            assertSame(newRows.get(j), row);
+            int i = indexOf(oldRows, row);
+            if (oldGroups[i] != newGroups[j])
+                assertTrue("row " + j + " isn't changed", list.changed.get(j));
+        }
+        return list;
+    }
+
+    private static int indexOf(List<TestNode> rows, TestNode row) {
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.get(i) == row)
+                return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void equalRowsAreMatchedByIdentity() {
+        List<TestNode> oldRows = new ArrayList<TestNode>();
+        for (int i = 0; i < 6; i++) {
+            // the rows are equal two by two
+            oldRows.add(new TestNode(null, "" + i / 2) {
+                @Override
+                public boolean equals(Object o) {
+                    return o instanceof TestNode && ((TestNode) o).getName().equals(getName());
+                }
+
+                @Override
+                public int hashCode() {
+                    return getName().hashCode();
+                }
+            });
+        }
+        List<TestNode> newRows = new ArrayList<TestNode>(oldRows);
+        newRows.add(0, newRows.remove(3));
+        newRows.remove(4);
+
+        SimulatedList list = apply(oldRows, groups(oldRows), newRows, groups(newRows), true);
+        // nothing is replaced
+        assertFalse(list.rows.contains(null));
+    }
+
+    @Test
+    public void keptRowsAreMovedAsLittleAsPossible() {
+        List<TestNode> oldRows = new ArrayList<TestNode>();
+        for (int i = 0; i < 6; i++)
+            oldRows.add(new TestNode(null, "" + i));
+        List<TestNode> newRows = new ArrayList<TestNode>(oldRows);
+        // move the last row to the top, remove one and insert one
+        newRows.add(0, newRows.remove(5));
+        newRows.remove(3);
+        TestNode added = new TestNode(null, "new");
+        newRows.add(2, added);
+
+        SimulatedList list = apply(oldRows, groups(oldRows), newRows, groups(newRows));
+        int inserted = 0;
+        for (TestNode row : list.rows) {
+            if (row == null)
+                inserted++;
+        }
+        assertEquals(1, inserted);
+        assertNull(list.rows.get(2));
+    }
+
+    @Test
+    public void changedGroupsAreNotified() {
+        List<TestNode> rows = new ArrayList<TestNode>();
+        for (int i = 0; i < 5; i++)
+            rows.add(new TestNode(null, "" + i));
+        int[] oldGroups = {TreeDiff.NOT_GROUP, 2, TreeDiff.NOT_GROUP, 3, 4};
+        int[] newGroups = {1, 2, TreeDiff.NOT_GROUP, TreeDiff.NOT_GROUP, 5};
+        SimulatedList list = apply(rows, oldGroups, rows, newGroups);
+        assertEquals(rows, list.rows);
+        assertTrue(list.changed.get(0));
+        assertFalse(list.changed.get(1));
+        assertFalse(list.changed.get(2));
+        assertTrue(list.changed.get(3));
+        // a collapsed group whose hidden descendants changed
+        assertTrue(list.changed.get(4));
+    }
+
+    @Test
+    public void randomChangesAreApplied() {
+        Random random = new Random(3);
+        List<TestNode> pool = new ArrayList<TestNode>();
+        for (int i = 0; i < 400; i++)
+            pool.add(new TestNode(null, "" + i));
+        for (int step = 0; step < 200; step++) {
+            // a random subset of the pool, slightly shuffled, before and after
+            List<TestNode> oldRows = randomRows(pool, random);
+            List<TestNode> newRows = randomRows(pool, random);
+            int[] oldGroups = new int[oldRows.size()];
+            for (int i = 0; i < oldGroups.length; i++)
+                oldGroups[i] = random.nextInt(4) == 0 ? random.nextInt(3) : TreeDiff.NOT_GROUP;
+            int[] newGroups = new int[newRows.size()];
+            for (int j = 0; j < newGroups.length; j++)
+                newGroups[j] = random.nextInt(4) == 0 ? random.nextInt(3) : TreeDiff.NOT_GROUP;
+            apply(oldRows, oldGroups, newRows, newGroups);
+        }
+    }
+
+    private static List<TestNode> randomRows(List<TestNode> pool, Random random) {
+        List<TestNode> rows = new ArrayList<TestNode>();
+        for (TestNode row : pool) {
+            if (random.nextInt(3) > 0)
+                rows.add(row);
+        }
+        // a few rows moved up to far away (more than MAX_MOVES moves replace all the rows)
+        int moves = random.nextInt(random.nextBoolean() ? 10 : 400);
+        for (int k = 0; k < moves && !rows.isEmpty(); k++)
+            rows.add(random.nextInt(rows.size()), rows.remove(random.nextInt(rows.size())));
+        return rows;
+    }
+}
@@ -5,6 +5,7 @@ import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v7.app.ActionBarActivity;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -12,11 +13,16 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ListView;
+import android.widget.TextView;
 
+import com.oissela.software.multilevelexpindlistview.ExpIndSnapshot;
+import com.oissela.software.multilevelexpindlistview.IndentationRenderer;
 import com.oissela.software.multilevelexpindlistview.MultiLevelExpIndListAdapter;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -60,53 +66,50 @@ public class MainActivity extends ActionBarActivity {
      * An example that shows how to use MultiLevelExpIndListAdapter to display some comments.
      *
      * The item view (listview_item.xml) and group view (listview_group.xml) have both an author
-     * and comment field and a vertical colored bar to show the indentation.
+     * and comment field. The indentation is shown by a vertical colored bar drawn by an
+     * IndentationRenderer, so the layouts don't need a view for it.
      * The group view has on the top right a field that shows the number of items in the groups.
      */
     public static class ListViewFragment extends Fragment {
         // indexes
         private static final int ITEM_AUTHOR = 0;
         private static final int ITEM_COMMENT = 1;
-        private static final int ITEM_INDENT_COLOR = 2;
         // keys
         private static final String ITEM_AUTHOR_KEY = "item_author_key";
         private static final String ITEM_COMMENT_KEY = "item_comment_key";
-        private static final String ITEM_INDENT_COLOR_KEY = "item_ind_color_key";
 
-        private static final String[] fromI = {ITEM_AUTHOR_KEY, ITEM_COMMENT_KEY, ITEM_INDENT_COLOR_KEY};
-        private static final int[] toI = {R.id.author_textview, R.id.comment_textview, R.id.color_band};
+        private static final String[] fromI = {ITEM_AUTHOR_KEY, ITEM_COMMENT_KEY};
+        private static final int[] toI = {R.id.author_textview, R.id.comment_textview};
 
         private static final String[] indColors = {"#000000", "#3366FF", "#E65CE6",
                 "#E68A5C", "#00E68A", "#CCCC33"};
+        // indColors parsed once, the IndentationRenderer makes a Paint for each one
+        private static final int[] indColorValues = new int[indColors.length];
+        static {
+            for (int i = 0; i < indColors.length; i++)
+                indColorValues[i] = Color.parseColor(indColors[i]);
+        }
 
         // indexes
         private static final int GROUP_AUTHOR = 0;
         private static final int GROUP_COMMENT = 1;
-        private static final int GROUP_INDENT_COLOR = 2;
-        private static final int GROUP_HIDDEN_CNT = 3;
+        private static final int GROUP_HIDDEN_CNT = 2;
         // keys
         private static final String GROUP_AUTHOR_KEY = "group_author_key";
         private static final String GROUP_COMMENT_KEY = "group_comment_key";
-        private static final String GROUP_INDENT_COLOR_KEY = "group_ind_color_key";
         private static final String GROUP_HIDDEN_CNT_KEY = "group_hidden_cnt_key";
 
-        private static final String[] fromG = {GROUP_AUTHOR_KEY, GROUP_COMMENT_KEY,
-                GROUP_INDENT_COLOR_KEY, GROUP_HIDDEN_CNT_KEY};
+        private static final String[] fromG = {GROUP_AUTHOR_KEY, GROUP_COMMENT_KEY, GROUP_HIDDEN_CNT_KEY};
         private static final int[] toG = {R.id.author_g_textview, R.id.comment_g_textview,
-                R.id.g_color_band, R.id.hidden_comments_count_textview};
+                R.id.hidden_comments_count_textview};
 
         private static final String ADAPTER_PARCEL_KEY = "adapter_parcel_key";
 
+        private static final String TAG = "ListViewFragment";
+
         private MultiLevelExpIndListAdapter mAdapter;
         private ListView mListView;
 
-        /**
-         * In this example comments are saved using a static field. A better solution would be
-         * to make the class that contains the data to implement Parcelable and save the data
-         * in the Bundle in onSaveInstanceState.
-         */
-        private static List<MyComment> sComments;
-
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
@@ -128,30 +131,43 @@ public class MainActivity extends ActionBarActivity {
                     resourceItem, fromI, toI,
                     resourceGroup, fromG, toG);
 
-            if (savedInstanceState == null) {
-                sComments = getDummyData();
-                mAdapter.addAll(sComments);
-            } else {
-                mAdapter.addAll(sComments);
-                ArrayList<Integer> groups = savedInstanceState.getIntegerArrayList(ADAPTER_PARCEL_KEY);
-                mAdapter.restoreGroups(groups);
+            // the comments and the collapsed groups are saved in a snapshot (see onSaveInstanceState),
+            // so they are restored even if the process was killed in the meantime
+            ExpIndSnapshot snapshot = savedInstanceState == null ? null :
+                    savedInstanceState.<ExpIndSnapshot>getParcelable(ADAPTER_PARCEL_KEY);
+            boolean restored = false;
+            if (snapshot != null) {
+                try {
+                    mAdapter.restoreSnapshot(snapshot, MyComment.CODEC);
+                    restored = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "can't restore the comments", e);
+                }
+            }
+            if (!restored) {
+                mAdapter.addAll(getDummyData());
             }
 
-            // the author and comment data are simple strings that can be displayed directly,
-            // the data is a string that represents a color and so has to be parsed in this ViewBinder
-            MultiLevelExpIndListAdapter.ViewBinder vb = new MultiLevelExpIndListAdapter.ViewBinder() {
+            // the comments are bound directly from the fields of MyComment, so they don't need
+            // to keep a map with the data of every view (see MyComment.getData())
+            mAdapter.setItemRowBinder(new MultiLevelExpIndListAdapter.RowBinder<MyComment>() {
                 @Override
-                public boolean setViewValue(View view, Object data, String textRepresentation) {
-                    if (view.getId() == R.id.color_band || view.getId() == R.id.g_color_band) {
-                        String color = (String) data;
-                        view.setBackgroundColor(Color.parseColor(color));
-                        return true;
-                    }
-                    return false;
+                public void bindRow(MyComment comment, MultiLevelExpIndListAdapter.ViewHolder holder) {
+                    ((TextView) holder.getView(ITEM_AUTHOR)).setText(comment.getAuthor());
+                    ((TextView) holder.getView(ITEM_COMMENT)).setText(comment.getComment());
                 }
-            };
-            mAdapter.setItemViewBinder(vb);
-            mAdapter.setGroupViewBinder(vb);
+            });
+            mAdapter.setGroupRowBinder(new MultiLevelExpIndListAdapter.RowBinder<MyComment>() {
+                @Override
+                public void bindRow(MyComment comment, MultiLevelExpIndListAdapter.ViewHolder holder) {
+                    ((TextView) holder.getView(GROUP_AUTHOR)).setText(comment.getAuthor());
+                    ((TextView) holder.getView(GROUP_COMMENT)).setText(comment.getComment());
+                    ((TextView) holder.getView(GROUP_HIDDEN_CNT)).setText(comment.getGroupSizeText());
+                }
+            });
+
+            // the colored bars are drawn in the background of the rows
+            mAdapter.setIndentationRenderer(new IndentationRenderer(getActivity(), 5, 5, indColorValues));
 
             mListView.setAdapter(mAdapter);
 
@@ -167,7 +183,11 @@ public class MainActivity extends ActionBarActivity {
         @Override
         public void onSaveInstanceState(Bundle outState) {
             super.onSaveInstanceState(outState);
-            outState.putIntegerArrayList(ADAPTER_PARCEL_KEY, mAdapter.saveGroups());
+            try {
+                outState.putParcelable(ADAPTER_PARCEL_KEY, mAdapter.saveSnapshot(MyComment.CODEC));
+            } catch (IOException e) {
+                Log.e(TAG, "can't save the comments", e);
+            }
         }
 
         private List<MyComment> getDummyData() {
@@ -217,23 +237,50 @@ public class MainActivity extends ActionBarActivity {
          * Class that represents a comment
          */
         private static class MyComment implements MultiLevelExpIndListAdapter.ExpIndData {
+            /**
+             * Saves the author and the text of a comment in a snapshot of the adapter.
+             */
+            public static final ExpIndSnapshot.Codec<MyComment> CODEC = new ExpIndSnapshot.Codec<MyComment>() {
+                @Override
+                public void write(MyComment comment, DataOutput out) throws IOException {
+                    out.writeUTF(comment.getAuthor());
+                    out.writeUTF(comment.getComment());
+                }
+
+                @Override
+                public MyComment read(DataInput in, MyComment parent) throws IOException {
+                    MyComment comment = new MyComment(in.readUTF(), in.readUTF());
+                    if (parent != null)
+                        parent.addChild(comment);
+                    return comment;
+                }
+            };
+
+            private final String mAuthor;
+            private final String mComment;
             private int mIndentation;
             private List<MyComment> mChildren;
             private boolean mIsGroup;
             private int mGroupSize;
-            private Map<String, String> mData;
+            private String mGroupSizeText;
 
             public MyComment(String author, String comment) {
+                mAuthor = author;
+                mComment = comment;
                 mChildren = new ArrayList<MyComment>();
-                mData = new HashMap<String, String>();
+                setIndentation(0);
+            }
 
-                mData.put(fromI[ITEM_AUTHOR], author);
-                mData.put(fromI[ITEM_COMMENT], comment);
+            public String getAuthor() {
+                return mAuthor;
+            }
 
-                mData.put(fromG[GROUP_AUTHOR], author);
-                mData.put(fromG[GROUP_COMMENT], comment);
+            public String getComment() {
+                return mComment;
+            }
 
-                setIndentation(0);
+            public String getGroupSizeText() {
+                return mGroupSizeText;
             }
 
             @Override
@@ -256,15 +303,19 @@ public class MainActivity extends ActionBarActivity {
                 return mIndentation;
             }
 
+            /**
+             * The comments are bound by the RowBinders set in onCreateView, so the adapter doesn't
+             * need the data map.
+             */
             @Override
             public Map<String, ?> getData() {
-                return mData;
+                return null;
             }
 
             @Override
             public void setGroupSize(int groupSize) {
                 mGroupSize = groupSize;
-                mData.put(fromG[GROUP_HIDDEN_CNT], "+ " + Integer.toString(mGroupSize));
+                mGroupSizeText = "+ " + Integer.toString(mGroupSize);
             }
 
             public void addChild(MyComment child) {
@@ -274,8 +325,6 @@ public class MainActivity extends ActionBarActivity {
 
             private void setIndentation(int indentation) {
                 mIndentation = indentation;
-                mData.put(fromI[ITEM_INDENT_COLOR], indColors[mIndentation]);
-                mData.put(fromG[GROUP_INDENT_COLOR], indColors[mIndentation]);
             }
         }
     }